@@ -1,20 +1,31 @@
 package kai9.libs;
 
+import java.text.ParsePosition;
+import java.time.DateTimeException;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
 import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
 import java.time.temporal.TemporalAccessor;
 import java.time.temporal.TemporalQueries;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * DateParserUtil クラスは、さまざまなフォーマットの日付文字列を Date オブジェクトに変換するための共通関数
@@ -23,7 +34,37 @@ public class DateParserUtil {
 
     // 使用する日付フォーマットのリスト
     private static final List<DateTimeFormatter> DATE_FORMATTERS = new ArrayList<>();
-    private static final ConcurrentMap<Integer, DateTimeFormatter> SUCCESSFUL_FORMATTERS = new ConcurrentHashMap<>();
+
+    // 文字列の形(桁数込み) → その形を解析できるフォーマットの番号(試す順)
+    // 同じ形の文字列は同じフォーマットで解析できるので、値が違っても共有できる。件数の上限を超えたら古いものから捨てる
+    private static final int SHAPE_CACHE_SIZE = 256;
+    // 形がこれより長い文字列は記憶しない(想定外の長い文字列でキャッシュを埋めない様に)
+    private static final int MAX_SIGNATURE_LENGTH = 64;
+    private static final Map<String, int[]> SUCCESSFUL_FORMATTERS = new LinkedHashMap<String, int[]>(SHAPE_CACHE_SIZE * 2, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > SHAPE_CACHE_SIZE;
+        }
+    };
+    private static final LongAdder CACHE_HITS = new LongAdder();
+    private static final LongAdder CACHE_MISSES = new LongAdder();
+
+    /**
+     * 列の解析で、空の値を表すエポックミリ秒
+     */
+    public static final long EMPTY_EPOCH_MILLI = Long.MIN_VALUE;
+    // 列の解析で、フォーマットを固定するまでに判定する値の数
+    private static final int COLUMN_SAMPLE_SIZE = 3;
+    // parseFastで解析した事を表すフォーマットの番号
+    private static final int FAST_PATH = -1;
+    // フォーマットを固定していない事を表す番号
+    private static final int NOT_LOCKED = -2;
+
+    // dateToStrのフォーマットの文字列 → DateTimeFormatter
+    private static final int PATTERN_CACHE_SIZE = 256;
+    private static final ConcurrentMap<String, DateTimeFormatter> PATTERN_FORMATTERS = new ConcurrentHashMap<>();
 
     // 静的イニシャライザで日付フォーマットをリストに追加
     // react側のvalidateExcelFile.isValidDateと平仄を合わせる事(同じフォーマッタを定義しているので
@@ -74,6 +115,78 @@ public class DateParserUtil {
 
     }
 
+    // 文字列の形 → 解析できる可能性が有るフォーマットの番号(DATE_FORMATTERSの順)
+    private static final Map<String, int[]> CANDIDATES = new HashMap<>();
+    // 省略可能な部分を持ち、形を予測できないフォーマットの番号(全ての形の候補に含める)
+    private static final int[] WILDCARDS;
+
+    // 各フォーマットでサンプルの日時を文字列化し、その形を候補表に登録する
+    static {
+        List<TemporalAccessor> samples = Arrays.asList(
+                LocalDate.of(2001, 2, 3),
+                LocalDateTime.of(2001, 2, 3, 4, 5, 6),
+                LocalDateTime.of(2024, 12, 31, 23, 59, 59, 123_000_000),
+                ZonedDateTime.of(2001, 2, 3, 4, 5, 6, 0, ZoneId.of("Asia/Tokyo")),
+                ZonedDateTime.of(2024, 12, 31, 23, 59, 59, 123_000_000, ZoneOffset.UTC),
+                OffsetDateTime.of(2001, 2, 3, 4, 5, 6, 0, ZoneOffset.ofHours(9)),
+                OffsetDateTime.of(2024, 12, 31, 23, 59, 59, 123_000_000, ZoneOffset.UTC));
+
+        Map<String, TreeSet<Integer>> candidates = new HashMap<>();
+        TreeSet<Integer> wildcards = new TreeSet<>();
+        for (int i = 0; i < DATE_FORMATTERS.size(); i++) {
+            DateTimeFormatter formatter = DATE_FORMATTERS.get(i);
+            if (formatter.toString().indexOf('[') >= 0) {
+                wildcards.add(i);
+            }
+            for (TemporalAccessor sample : samples) {
+                try {
+                    candidates.computeIfAbsent(shapeOf(formatter.format(sample)), k -> new TreeSet<>()).add(i);
+                } catch (DateTimeException e) {
+                    // サンプルの型では文字列化できないフォーマット(日付のみのサンプルに時刻のパターン等)
+                }
+            }
+        }
+        WILDCARDS = toArray(wildcards);
+        for (Map.Entry<String, TreeSet<Integer>> entry : candidates.entrySet()) {
+            entry.getValue().addAll(wildcards);
+            CANDIDATES.put(entry.getKey(), toArray(entry.getValue()));
+        }
+    }
+
+    private static int[] toArray(TreeSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (int value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+
+    /**
+     * 文字列の形を返す(数字の連続は'9'、英字の連続は'a'に縮め、それ以外の文字はそのまま)
+     *
+     * 例) "2024/01/02 10:20:30" → "9/9/9 9:9:9"、"Tue Jan 02 2024" → "a a 9 9"
+     */
+    static String shapeOf(String str) {
+        StringBuilder sb = new StringBuilder(str.length());
+        char last = 0;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            char kind;
+            if (c >= '0' && c <= '9') {
+                kind = '9';
+            } else if (Character.isLetter(c)) {
+                kind = 'a';
+            } else {
+                kind = c;
+            }
+            if ((kind == '9' || kind == 'a') && kind == last) continue;
+            sb.append(kind);
+            last = kind;
+        }
+        return sb.toString();
+    }
+
     /**
      * 入力文字列をさまざまな日付フォーマットで解析し、Date オブジェクトに変換
      *
@@ -82,26 +195,53 @@ public class DateParserUtil {
      * @throws IllegalArgumentException 日付文字列がどのフォーマットでも解析できない場合
      */
     public static Date strToDate(String dateStr) {
-        int dateStrHash = dateStr.hashCode();
-        // 成功したフォーマットが記憶されている場合、それを優先的に使用する
-        if (SUCCESSFUL_FORMATTERS.containsKey(dateStrHash)) {
-            try {
-                DateTimeFormatter cachedFormatter = SUCCESSFUL_FORMATTERS.get(dateStrHash);
-                TemporalAccessor temporalAccessor = cachedFormatter.parse(dateStr);
-                return convertTemporalAccessorToDate(temporalAccessor);
-            } catch (DateTimeParseException e) {
-                // キャッシュされたフォーマットが失敗した場合、通常の処理に戻る
+        return Date.from(toInstant(parse(dateStr, null)));
+    }
+
+    // 解析して、タイムゾーンの無い値はLocalDateTime、タイムゾーン付きの値はZonedDateTimeで返す
+    // used[0]に解析できたフォーマットの番号を返す(parseFastLocalの場合はFAST_PATH。usedがnullなら返さない)
+    private static TemporalAccessor parse(String dateStr, int[] used) {
+        // よく使う数字だけの形式は、フォーマッタを使わずに直接解析する
+        LocalDateTime fastDateTime = parseFastLocal(dateStr);
+        if (fastDateTime != null) {
+            if (used != null) used[0] = FAST_PATH;
+            return fastDateTime;
+        }
+
+        // 同じ形の文字列で解析できたフォーマットを記憶している場合、それだけを試す
+        String signature = signatureOf(dateStr);
+        int[] formatters = null;
+        if (signature != null) {
+            synchronized (SUCCESSFUL_FORMATTERS) {
+                formatters = SUCCESSFUL_FORMATTERS.get(signature);
+            }
+        }
+        if (formatters != null) {
+            CACHE_HITS.increment();
+        } else {
+            CACHE_MISSES.increment();
+            formatters = matchingFormatters(dateStr);
+            if (signature != null) {
+                synchronized (SUCCESSFUL_FORMATTERS) {
+                    SUCCESSFUL_FORMATTERS.put(signature, formatters);
+                }
             }
         }
 
-        for (DateTimeFormatter formatter : DATE_FORMATTERS) {
-            try {
-                TemporalAccessor temporalAccessor = formatter.parseBest(dateStr, ZonedDateTime::from, LocalDateTime::from, LocalDate::from);
-                Date parsedDate = convertTemporalAccessorToDate(temporalAccessor);
-                SUCCESSFUL_FORMATTERS.put(dateStrHash, formatter); // 成功したフォーマットを記憶
-                return parsedDate;
-            } catch (DateTimeParseException e) {
-                // 無視して次のフォーマットを試す
+        for (int index : formatters) {
+            TemporalAccessor parsed = resolve(DATE_FORMATTERS.get(index), dateStr);
+            if (parsed != null) {
+                if (used != null) used[0] = index;
+                return parsed;
+            }
+        }
+        // 英字を含む形は単語によって一致するフォーマットが変わり得るので、残りのフォーマットも試す
+        for (int index = 0; index < DATE_FORMATTERS.size(); index++) {
+            if (contains(formatters, index)) continue;
+            TemporalAccessor parsed = tryParse(DATE_FORMATTERS.get(index), dateStr);
+            if (parsed != null) {
+                if (used != null) used[0] = index;
+                return parsed;
             }
         }
         // どのフォーマットでも解析できなかった場合は例外を投げる
@@ -109,32 +249,295 @@ public class DateParserUtil {
     }
 
     /**
-     * TemporalAccessor インスタンスを Date オブジェクトに変換
+     * 列の日付文字列をまとめて解析し、エポックミリ秒の配列に変換
+     *
+     * 取込データの列は通常1つのフォーマットで統一されているので、先頭の空でない値(最大3件)でフォーマットを判定し、
+     * 全て同じフォーマットであれば、以降の値はそのフォーマットだけで解析する。
+     * 一致しない値だけ strToDate と同様に全てのフォーマットを試し、以降はその値で解析できたフォーマットに切り替える。
+     * その為、同じ値でも列の他の値によって解釈が変わる事が有る。
+     * 例) 先頭が "13/01/2024" の列では、"01/02/2024" も dd/MM/yyyy として2月1日と解釈する(strToDate単体では1月2日)
+     *
+     * @param dateStrs 日付文字列の列
+     * @return エポックミリ秒の配列(null・空白のみの値は EMPTY_EPOCH_MILLI)
+     * @throws IllegalArgumentException どのフォーマットでも解析できない値が有る場合
+     */
+    public static long[] strToEpochMillis(List<String> dateStrs) {
+        long[] result = new long[dateStrs.size()];
+        ColumnParser parser = new ColumnParser();
+        for (int i = 0; i < result.length; i++) {
+            TemporalAccessor parsed = parser.parse(dateStrs.get(i), i);
+            result[i] = (parsed == null) ? EMPTY_EPOCH_MILLI : toInstant(parsed).toEpochMilli();
+        }
+        return result;
+    }
+
+    /**
+     * 列の日付文字列をまとめて解析し、エポックミリ秒の配列に変換(strToEpochMillis(List)と同じ)
+     */
+    public static long[] strToEpochMillis(String[] dateStrs) {
+        return strToEpochMillis(Arrays.asList(dateStrs));
+    }
+
+    /**
+     * 列の日付文字列をまとめて解析し、LocalDateTimeの配列に変換(タイムゾーン付きの値はシステムのタイムゾーンの日時にする)
+     *
+     * フォーマットの判定は strToEpochMillis(List) と同じ
+     *
+     * @param dateStrs 日付文字列の列
+     * @return LocalDateTimeの配列(null・空白のみの値はnull)
+     * @throws IllegalArgumentException どのフォーマットでも解析できない値が有る場合
+     */
+    public static LocalDateTime[] strToLocalDateTimes(List<String> dateStrs) {
+        LocalDateTime[] result = new LocalDateTime[dateStrs.size()];
+        ColumnParser parser = new ColumnParser();
+        for (int i = 0; i < result.length; i++) {
+            TemporalAccessor parsed = parser.parse(dateStrs.get(i), i);
+            result[i] = (parsed == null) ? null : toLocalDateTime(parsed);
+        }
+        return result;
+    }
+
+    /**
+     * 列の日付文字列をまとめて解析し、LocalDateTimeの配列に変換(strToLocalDateTimes(List)と同じ)
+     */
+    public static LocalDateTime[] strToLocalDateTimes(String[] dateStrs) {
+        return strToLocalDateTimes(Arrays.asList(dateStrs));
+    }
+
+    // 列の解析状態(先頭の値で判定したフォーマットを固定する)
+    private static class ColumnParser {
+        private final int[] used = new int[1];
+        private int sampled = 0;
+        private int locked = NOT_LOCKED;
+
+        // 空の値はnull(それ以外はDateParserUtil.parseと同じくLocalDateTimeかZonedDateTime)
+        TemporalAccessor parse(String dateStr, int row) {
+            if (dateStr == null || dateStr.trim().isEmpty()) {
+                return null;
+            }
+            if (sampled >= COLUMN_SAMPLE_SIZE && locked != NOT_LOCKED) {
+                TemporalAccessor parsed = (locked == FAST_PATH) ? parseFastLocal(dateStr) : tryParse(DATE_FORMATTERS.get(locked), dateStr);
+                if (parsed != null) {
+                    return parsed;
+                }
+            }
+
+            TemporalAccessor parsed;
+            try {
+                parsed = DateParserUtil.parse(dateStr, used);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(e.getMessage() + " (" + (row + 1) + "件目)", e);
+            }
+            if (sampled < COLUMN_SAMPLE_SIZE) {
+                // 判定中の値が1件でも別のフォーマットなら固定しない
+                if (sampled == 0) {
+                    locked = used[0];
+                } else if (locked != used[0]) {
+                    locked = NOT_LOCKED;
+                }
+                sampled++;
+            } else if (locked != NOT_LOCKED) {
+                // 固定したフォーマットで解析できなかった場合は、解析できたフォーマットに切り替える
+                // (先頭が月日の区別が付かない値だった場合に、以降の値で失敗し続けない様に)
+                locked = used[0];
+            }
+            return parsed;
+        }
+    }
+
+    // 書式が一致するフォーマットの番号を、試す順に返す
+    // 文字列の形から絞った候補が先、それ以外(サンプルから形を予測できなかったもの)が後。それぞれDATE_FORMATTERSの順
+    private static int[] matchingFormatters(String dateStr) {
+        int[] candidates = CANDIDATES.getOrDefault(shapeOf(dateStr), WILDCARDS);
+        int[] matched = new int[DATE_FORMATTERS.size()];
+        int count = 0;
+        for (int index : candidates) {
+            if (matchesLayout(DATE_FORMATTERS.get(index), dateStr)) {
+                matched[count++] = index;
+            }
+        }
+        for (int index = 0; index < DATE_FORMATTERS.size(); index++) {
+            if (Arrays.binarySearch(candidates, index) >= 0) continue;
+            if (matchesLayout(DATE_FORMATTERS.get(index), dateStr)) {
+                matched[count++] = index;
+            }
+        }
+        return Arrays.copyOf(matched, count);
+    }
+
+    private static boolean contains(int[] array, int value) {
+        for (int element : array) {
+            if (element == value) return true;
+        }
+        return false;
+    }
+
+    /**
+     * キャッシュ用に、桁数を残した文字列の形を返す(数字は1文字ずつ'9'、英字の連続は'a'、それ以外の文字はそのまま)
+     *
+     * 例) "2024/01/02" と "2025/12/31" → "9999/99/99"、"2024/1/2" → "9999/9/9"
+     * 数字の桁数と区切り文字が同じなら、同じフォーマットの書式に一致する。
+     */
+    static String signatureOf(String str) {
+        StringBuilder sb = new StringBuilder(Math.min(str.length(), MAX_SIGNATURE_LENGTH));
+        boolean inLetters = false;
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            if (Character.isLetter(c)) {
+                if (inLetters) continue;
+                sb.append('a');
+                inLetters = true;
+            } else {
+                sb.append((c >= '0' && c <= '9') ? '9' : c);
+                inLetters = false;
+            }
+            if (sb.length() > MAX_SIGNATURE_LENGTH) return null;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 形のキャッシュに一致した回数を返す
+     */
+    public static long getCacheHitCount() {
+        return CACHE_HITS.sum();
+    }
+
+    /**
+     * 形のキャッシュに一致しなかった回数を返す
+     */
+    public static long getCacheMissCount() {
+        return CACHE_MISSES.sum();
+    }
+
+    /**
+     * 形のキャッシュの件数を返す
+     */
+    public static int getCacheSize() {
+        synchronized (SUCCESSFUL_FORMATTERS) {
+            return SUCCESSFUL_FORMATTERS.size();
+        }
+    }
+
+    /**
+     * 形のキャッシュと一致回数を消去する
+     */
+    public static void clearCache() {
+        synchronized (SUCCESSFUL_FORMATTERS) {
+            SUCCESSFUL_FORMATTERS.clear();
+        }
+        CACHE_HITS.reset();
+        CACHE_MISSES.reset();
+    }
+
+    // フォーマットで解析する(解析できない場合はnull)
+    private static TemporalAccessor tryParse(DateTimeFormatter formatter, String dateStr) {
+        if (!matchesLayout(formatter, dateStr)) {
+            return null;
+        }
+        return resolve(formatter, dateStr);
+    }
+
+    // 書式が一致するかどうか(parseUnresolvedで、例外を発生させずに判定する)
+    private static boolean matchesLayout(DateTimeFormatter formatter, String dateStr) {
+        ParsePosition position = new ParsePosition(0);
+        return formatter.parseUnresolved(dateStr, position) != null && position.getErrorIndex() < 0 && position.getIndex() == dateStr.length();
+    }
+
+    // 書式が一致した文字列を日時に変換する(値が不正な場合はnull)
+    // parseBestは型を順に試して内部で例外を発生させるので、まずparseの結果を直接変換する
+    private static TemporalAccessor resolve(DateTimeFormatter formatter, String dateStr) {
+        try {
+            return normalize(formatter.parse(dateStr));
+        } catch (DateTimeParseException e) {
+            return null;
+        } catch (DateTimeException e) {
+            // 直接変換できない組合せ(タイムゾーン付きで時刻無し等)は、従来通りparseBestで変換する
+        }
+        try {
+            TemporalAccessor temporalAccessor = formatter.parseBest(dateStr, ZonedDateTime::from, LocalDateTime::from, LocalDate::from);
+            return normalize(temporalAccessor);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * よく使う形式を直接解析する(対象外の形式や、日付として不正な値はnull)
+     *
+     * 対象: yyyy-MM-dd、yyyy/MM/dd、yyyyMMdd、yyyy-MM-dd HH:mm:ss、yyyy/MM/dd HH:mm:ss(日付と時刻の間は' 'か'T')
+     * いずれもDATE_FORMATTERSで最初に一致するフォーマットと同じ結果になる。
+     * 月末を超える日付等はフォーマッタ毎に扱いが異なるので、ここでは解析せずにフォーマッタに任せる。
+     */
+    private static LocalDateTime parseFastLocal(String str) {
+        int length = str.length();
+        int year, month, day;
+        if (length == 8) {
+            // yyyyMMdd
+            year = digits(str, 0, 4);
+            month = digits(str, 4, 2);
+            day = digits(str, 6, 2);
+        } else if (length == 10 || length == 19) {
+            char sep = str.charAt(4);
+            if ((sep != '-' && sep != '/') || str.charAt(7) != sep) return null;
+            year = digits(str, 0, 4);
+            month = digits(str, 5, 2);
+            day = digits(str, 8, 2);
+        } else {
+            return null;
+        }
+        if (year < 1 || month < 1 || month > 12 || day < 1) return null;
+        if (day > 28 && day > LocalDate.of(year, month, 1).lengthOfMonth()) return null;
+        if (length != 19) {
+            return LocalDateTime.of(year, month, day, 0, 0);
+        }
+
+        // 時刻部
+        char t = str.charAt(10);
+        if ((t != ' ' && t != 'T') || str.charAt(13) != ':' || str.charAt(16) != ':') return null;
+        int hour = digits(str, 11, 2);
+        int minute = digits(str, 14, 2);
+        int second = digits(str, 17, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) return null;
+        return LocalDateTime.of(year, month, day, hour, minute, second);
+    }
+
+    // 数字をcount桁読む(数字以外が有る場合は-1)
+    private static int digits(String str, int start, int count) {
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * TemporalAccessor インスタンスを LocalDateTime または ZonedDateTime に変換
      *
-     * このメソッドは、TemporalAccessor インスタンスを受け取り、それを java.util.Date オブジェクトに
-     * 変換します。ZonedDateTime、LocalDateTime、および LocalDate のインスタンスを処理し、
+     * このメソッドは、TemporalAccessor インスタンスを受け取り、タイムゾーン情報が有る場合は ZonedDateTime、
+     * 無い場合は LocalDateTime(日付のみの場合は0時)に揃えます。ZonedDateTime、LocalDateTime、および LocalDate のインスタンスを処理し、
      * 最初に型が特定できない場合には TemporalAccessor から特定の時制情報を問い合わせる
+     * システムのタイムゾーンは、Date・Instant に変換する時(toInstant)だけ適用する
      *
      * @param temporalAccessor 変換する TemporalAccessor インスタンス
-     * @return 変換された Date オブジェクト
+     * @return 変換された LocalDateTime または ZonedDateTime
      * @throws IllegalArgumentException 未知の TemporalAccessor タイプの場合にスローされる
      */
-    private static Date convertTemporalAccessorToDate(TemporalAccessor temporalAccessor) {
-        // temporalAccessor が ZonedDateTime の場合
-        if (temporalAccessor instanceof ZonedDateTime) {
-            return Date.from(((ZonedDateTime) temporalAccessor).toInstant());
-            // temporalAccessor が LocalDateTime の場合
-        } else if (temporalAccessor instanceof LocalDateTime) {
-            return Date.from(((LocalDateTime) temporalAccessor).atZone(ZoneId.systemDefault()).toInstant());
+    private static TemporalAccessor normalize(TemporalAccessor temporalAccessor) {
+        // temporalAccessor が ZonedDateTime または LocalDateTime の場合
+        if (temporalAccessor instanceof ZonedDateTime || temporalAccessor instanceof LocalDateTime) {
+            return temporalAccessor;
             // temporalAccessor が LocalDate の場合
         } else if (temporalAccessor instanceof LocalDate) {
-            return Date.from(((LocalDate) temporalAccessor).atStartOfDay(ZoneId.systemDefault()).toInstant());
+            return ((LocalDate) temporalAccessor).atStartOfDay();
             // temporalAccessor にタイムゾーン情報が含まれる場合
         } else if (temporalAccessor.query(TemporalQueries.zone()) != null) {
-            return Date.from(ZonedDateTime.from(temporalAccessor).toInstant());
+            return ZonedDateTime.from(temporalAccessor);
             // temporalAccessor にローカル時間情報が含まれる場合
         } else if (temporalAccessor.query(TemporalQueries.localTime()) != null) {
-            return Date.from(LocalDateTime.from(temporalAccessor).atZone(ZoneId.systemDefault()).toInstant());
+            return LocalDateTime.from(temporalAccessor);
 //        	LocalDateTime localDateTime = LocalDateTime.of(
 //        		    temporalAccessor.query(TemporalQueries.localDate()), 
 //        		    temporalAccessor.query(TemporalQueries.localTime())
@@ -142,12 +545,28 @@ public class DateParserUtil {
 //        	return Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
             // temporalAccessor にローカル日付情報が含まれる場合
         } else if (temporalAccessor.query(TemporalQueries.localDate()) != null) {
-            return Date.from(LocalDate.from(temporalAccessor).atStartOfDay(ZoneId.systemDefault()).toInstant());
+            return LocalDate.from(temporalAccessor).atStartOfDay();
         }
         // 未知の TemporalAccessor タイプの場合は例外をスロー
         throw new IllegalArgumentException("不明な TemporalAccessor 型です");
     }
 
+    // 解析結果(normalizeの戻り値)を時点に変換する(タイムゾーンの無い値はシステムのタイムゾーンの日時とする)
+    private static Instant toInstant(TemporalAccessor parsed) {
+        if (parsed instanceof ZonedDateTime) {
+            return ((ZonedDateTime) parsed).toInstant();
+        }
+        return ((LocalDateTime) parsed).atZone(ZoneId.systemDefault()).toInstant();
+    }
+
+    // 解析結果(normalizeの戻り値)を日時に変換する(タイムゾーン付きの値だけ、システムのタイムゾーンの日時にする)
+    private static LocalDateTime toLocalDateTime(TemporalAccessor parsed) {
+        if (parsed instanceof ZonedDateTime) {
+            return LocalDateTime.ofInstant(((ZonedDateTime) parsed).toInstant(), ZoneId.systemDefault());
+        }
+        return (LocalDateTime) parsed;
+    }
+
     /**
      * Date オブジェクトを指定されたフォーマットの文字列に変換
      *
@@ -156,22 +575,103 @@ public class DateParserUtil {
      * @return 変換された日付文字列
      */
     public static String dateToStr(Date date, String format) {
-        LocalDateTime localDateTime = LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern(format);
-        return localDateTime.format(formatter);
+        return dateToStr(date.getTime(), format);
+    }
+
+    /**
+     * LocalDateTime を指定されたフォーマットの文字列に変換
+     *
+     * @param localDateTime 変換する日時
+     * @param format 変換するフォーマット
+     * @return 変換された日付文字列
+     */
+    public static String dateToStr(LocalDateTime localDateTime, String format) {
+        return formatterOf(format).format(localDateTime);
+    }
+
+    /**
+     * Instant をシステムのタイムゾーンの日時として、指定されたフォーマットの文字列に変換
+     *
+     * @param instant 変換する時点
+     * @param format 変換するフォーマット
+     * @return 変換された日付文字列
+     */
+    public static String dateToStr(Instant instant, String format) {
+        return formatterOf(format).format(LocalDateTime.ofInstant(instant, ZoneId.systemDefault()));
+    }
+
+    /**
+     * エポックミリ秒をシステムのタイムゾーンの日時として、指定されたフォーマットの文字列に変換
+     *
+     * @param epochMilli 変換する時点
+     * @param format 変換するフォーマット
+     * @return 変換された日付文字列
+     */
+    public static String dateToStr(long epochMilli, String format) {
+        return dateToStr(Instant.ofEpochMilli(epochMilli), format);
+    }
+
+    // フォーマットの文字列 → DateTimeFormatter(ofPatternはパターンの解析が重いので使い回す。DateTimeFormatterはスレッドセーフ)
+    // 呼出側で組み立てたパターンで際限なく増えない様に、件数の上限を超えたら記憶しない
+    private static DateTimeFormatter formatterOf(String format) {
+        DateTimeFormatter formatter = PATTERN_FORMATTERS.get(format);
+        if (formatter == null) {
+            formatter = DateTimeFormatter.ofPattern(format);
+            if (PATTERN_FORMATTERS.size() < PATTERN_CACHE_SIZE) {
+                PATTERN_FORMATTERS.putIfAbsent(format, formatter);
+            }
+        }
+        return formatter;
+    }
+
+    /**
+     * 入力文字列を解析し、LocalDateTime に変換(タイムゾーン付きの値はシステムのタイムゾーンの日時にする)
+     *
+     * @param dateStr 解析する日付文字列
+     * @return 解析された日時
+     * @throws IllegalArgumentException 日付文字列がどのフォーマットでも解析できない場合
+     */
+    public static LocalDateTime strToLocalDateTime(String dateStr) {
+        return toLocalDateTime(parse(dateStr, null));
+    }
+
+    /**
+     * 入力文字列を解析し、Instant に変換(タイムゾーンの無い値はシステムのタイムゾーンの日時とする)
+     *
+     * @param dateStr 解析する日付文字列
+     * @return 解析された時点
+     * @throws IllegalArgumentException 日付文字列がどのフォーマットでも解析できない場合
+     */
+    public static Instant strToInstant(String dateStr) {
+        return toInstant(parse(dateStr, null));
     }
 
-    // 時刻を持っているかどうかを判定するメソッド
+    /**
+     * 入力文字列を解析し、エポックミリ秒に変換(タイムゾーンの無い値はシステムのタイムゾーンの日時とする)
+     *
+     * @param dateStr 解析する日付文字列
+     * @return 解析された時点
+     * @throws IllegalArgumentException 日付文字列がどのフォーマットでも解析できない場合
+     */
+    public static long strToEpochMilli(String dateStr) {
+        return toInstant(parse(dateStr, null)).toEpochMilli();
+    }
+
+    // 時刻を持っているかどうかを判定するメソッド(システムのタイムゾーンで、時・分・秒のいずれかが0以外)
     public static boolean hasTime(Date date) {
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(date);
+        return hasTime(date.getTime());
+    }
 
-        // 時間情報を取得
-        int hours = calendar.get(Calendar.HOUR_OF_DAY);
-        int minutes = calendar.get(Calendar.MINUTE);
-        int seconds = calendar.get(Calendar.SECOND);
+    // 時刻を持っているかどうかを判定するメソッド(時・分・秒のいずれかが0以外)
+    public static boolean hasTime(LocalDateTime localDateTime) {
+        return localDateTime.getHour() != 0 || localDateTime.getMinute() != 0 || localDateTime.getSecond() != 0;
+    }
 
-        // 時間情報があるかどうかを判定
-        return hours != 0 || minutes != 0 || seconds != 0;
+    // 時刻を持っているかどうかを判定するメソッド(システムのタイムゾーンで、時・分・秒のいずれかが0以外)
+    // Calendarを作らずに、時差を足した秒数が1日の秒数で割り切れるかで判定する(ミリ秒は見ない)
+    // 時差は従来のCalendarと同じ結果になる様にTimeZoneから求める
+    public static boolean hasTime(long epochMilli) {
+        long localMilli = epochMilli + TimeZone.getDefault().getOffset(epochMilli);
+        return Math.floorMod(Math.floorDiv(localMilli, 1000L), 86400L) != 0;
     }
 }
@@ -1,6 +1,8 @@
 package kai9.libs;
 
 import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import javax.servlet.http.HttpServletResponse;
@@ -63,13 +65,8 @@ public class JsonResponse {
             }
 
             if (data != null) {
-                // dataがJSON形式の文字列であることを確認し、そのまま設定する
-                try {
-                    new JSONObject(data); // dataが正しいJSON形式であることを確認するためのコード
-                    json.put("data", new JSONArray(data)); // dataをJSONArrayに変換して設定
-                } catch (JSONException e) {
-                    json.put("data", data); // dataがJSON形式でない場合はそのまま設定
-                }
+                // dataは文字列として設定する
+                json.put("data", data);
             }
 
             if (jso != null) {
@@ -96,4 +93,245 @@ public class JsonResponse {
         }
     }
 
+    /**
+     * Json形式のレスポンスを、JSONObjectを組み立てずに直接書き込む
+     * 一覧画面等でdataが数MBになる場合に、dataの解析・複製を避ける為に使う
+     *
+     * rawDataがfalseの場合は、SetJsonResponseと同じ内容(dataは文字列)を出力する。
+     * rawDataがtrueの場合は、dataが'{'か'['で始まるJSONであれば、文字列にせずそのまま出力する。(JSONとして組み立て済のdataに使う)
+     * JSONかどうかは1回の走査で構文を確認し、JSONでない場合は文字列として出力する。
+     * 出力途中でエラーになって不完全なJSONを返さない様に、jsoの値は書き込み前に全て文字列にしておく。
+     * 
+     * @param HttpServletResponse リクエストデータ
+     * @param rawData dataをJSONのまま出力するかどうか
+     */
+    public void SetJsonResponseStream(HttpServletResponse res, boolean rawData) throws IOException {
+        res.setContentType("application/json");
+        res.setCharacterEncoding("UTF-8");
+        res.setStatus(return_code);
+
+        try {
+            // jsoに同じキーが有る場合は、SetJsonResponseと同じくjsoの値を優先する
+            // dataより前の部分
+            StringBuilder head = new StringBuilder();
+            head.append('{');
+            head.append("\"return_code\":");
+            head.append(has("return_code") ? JSONObject.valueToString(jso.get("return_code")) : Integer.toString(return_code));
+
+            if (has("msg")) {
+                head.append(",\"msg\":");
+                head.append(JSONObject.valueToString(jso.get("msg")));
+            } else if (msg != null) {
+                head.append(",\"msg\":");
+                head.append(JSONObject.quote(msg));
+            }
+
+            String jsoData = has("data") ? JSONObject.valueToString(jso.get("data")) : null;
+
+            // dataより後の部分
+            StringBuilder tail = new StringBuilder();
+            if (jso != null) {
+                Iterator<String> iter = jso.keys();
+                while (iter.hasNext()) {
+                    String key = iter.next();
+                    if (key.equals("return_code") || key.equals("msg") || key.equals("data")) continue;
+                    tail.append(',');
+                    tail.append(JSONObject.quote(key));
+                    tail.append(':');
+                    tail.append(JSONObject.valueToString(jso.get(key)));
+                }
+            }
+            tail.append('}');
+
+            // レスポンスの書き込み
+            Writer writer = res.getWriter();
+            writer.append(head);
+            if (jsoData != null) {
+                writer.write(",\"data\":");
+                writer.write(jsoData);
+            } else if (data != null) {
+                writer.write(",\"data\":");
+                if (rawData && isJsonStructure(data)) {
+                    writer.write(data);
+                } else {
+                    writer.write(JSONObject.quote(data));
+                }
+            }
+            writer.append(tail);
+
+        } catch (JSONException e) {
+            e.printStackTrace();
+            // JSON生成中にエラーが発生した場合の処理を記述
+        }
+    }
+
+    private boolean has(String key) {
+        return jso != null && jso.has(key);
+    }
+
+    // isJsonStructureの走査で、次に来るべきもの
+    private static final int EXPECT_VALUE = 0;
+    private static final int EXPECT_VALUE_OR_CLOSE = 1; // '['の直後
+    private static final int EXPECT_KEY = 2;
+    private static final int EXPECT_KEY_OR_CLOSE = 3; // '{'の直後
+    private static final int EXPECT_COLON = 4;
+    private static final int EXPECT_COMMA_OR_CLOSE = 5; // 値の直後
+    private static final String[] LITERALS = { "true", "false", "null" };
+
+    /**
+     * 文字列が'{'か'['で始まるJSONかどうかを判定する
+     * 1回の走査で、括弧の対応・文字列・数値・リテラル(true/false/null)の書式と、':'と','の位置を確認する
+     * (入れ子が深くてもスタックを使い切らない様に、再帰せずに開いている括弧を配列に積む)
+     */
+    static boolean isJsonStructure(String str) {
+        int end = str.length();
+        int i = skipWhitespace(str, 0);
+        if (i == end) return false;
+        char first = str.charAt(i);
+        if (first != '{' && first != '[') return false;
+
+        // 開いている括弧('{'か'[')
+        char[] stack = new char[16];
+        int depth = 0;
+        int expect = EXPECT_VALUE;
+        while (true) {
+            i = skipWhitespace(str, i);
+            if (i == end) return false;
+            char c = str.charAt(i);
+
+            if (expect == EXPECT_COMMA_OR_CLOSE) {
+                char open = stack[depth - 1];
+                if (c == ',') {
+                    expect = (open == '{') ? EXPECT_KEY : EXPECT_VALUE;
+                    i++;
+                } else if (c == (open == '{' ? '}' : ']')) {
+                    depth--;
+                    i++;
+                } else {
+                    return false;
+                }
+            } else if (expect == EXPECT_COLON) {
+                if (c != ':') return false;
+                expect = EXPECT_VALUE;
+                i++;
+            } else if (expect == EXPECT_KEY || expect == EXPECT_KEY_OR_CLOSE) {
+                if (c == '}' && expect == EXPECT_KEY_OR_CLOSE) {
+                    depth--;
+                    expect = EXPECT_COMMA_OR_CLOSE;
+                    i++;
+                } else if (c == '"') {
+                    i = skipString(str, i);
+                    expect = EXPECT_COLON;
+                } else {
+                    return false;
+                }
+            } else if (c == ']' && expect == EXPECT_VALUE_OR_CLOSE) {
+                depth--;
+                expect = EXPECT_COMMA_OR_CLOSE;
+                i++;
+            } else if (c == '{' || c == '[') {
+                if (depth == stack.length) {
+                    stack = Arrays.copyOf(stack, depth * 2);
+                }
+                stack[depth++] = c;
+                expect = (c == '{') ? EXPECT_KEY_OR_CLOSE : EXPECT_VALUE_OR_CLOSE;
+                i++;
+            } else {
+                if (c == '"') {
+                    i = skipString(str, i);
+                } else if (c == '-' || (c >= '0' && c <= '9')) {
+                    i = skipNumber(str, i);
+                } else {
+                    i = skipLiteral(str, i);
+                }
+                expect = EXPECT_COMMA_OR_CLOSE;
+            }
+            if (i < 0) return false;
+            // 最初の括弧が閉じたら、後は空白だけでなければならない
+            if (depth == 0) {
+                return skipWhitespace(str, i) == end;
+            }
+        }
+    }
+
+    private static int skipWhitespace(String str, int i) {
+        while (i < str.length()) {
+            char c = str.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') break;
+            i++;
+        }
+        return i;
+    }
+
+    // iの'"'から始まる文字列の次の位置を返す(不正な場合は-1)
+    private static int skipString(String str, int i) {
+        int end = str.length();
+        i++;
+        while (i < end) {
+            char c = str.charAt(i);
+            if (c == '"') {
+                return i + 1;
+            }
+            if (c == '\\') {
+                if (++i == end) return -1;
+                char escaped = str.charAt(i);
+                if (escaped == 'u') {
+                    if (i + 4 >= end) return -1;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        if (Character.digit(str.charAt(j), 16) < 0) return -1;
+                    }
+                    i += 4;
+                } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                    return -1;
+                }
+            } else if (c < 0x20) {
+                // 文字列中の制御文字はJSONとして不正
+                return -1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    // iから始まる数値の次の位置を返す(不正な場合は-1)
+    private static int skipNumber(String str, int i) {
+        int end = str.length();
+        if (str.charAt(i) == '-') i++;
+        if (i < end && str.charAt(i) == '0') {
+            i++;
+        } else {
+            int digits = skipDigits(str, i);
+            if (digits == i) return -1;
+            i = digits;
+        }
+        if (i < end && str.charAt(i) == '.') {
+            int digits = skipDigits(str, i + 1);
+            if (digits == i + 1) return -1;
+            i = digits;
+        }
+        if (i < end && (str.charAt(i) == 'e' || str.charAt(i) == 'E')) {
+            i++;
+            if (i < end && (str.charAt(i) == '+' || str.charAt(i) == '-')) i++;
+            int digits = skipDigits(str, i);
+            if (digits == i) return -1;
+            i = digits;
+        }
+        return i;
+    }
+
+    private static int skipDigits(String str, int i) {
+        while (i < str.length() && str.charAt(i) >= '0' && str.charAt(i) <= '9') i++;
+        return i;
+    }
+
+    // iから始まるtrue/false/nullの次の位置を返す(不正な場合は-1)
+    private static int skipLiteral(String str, int i) {
+        for (String literal : LITERALS) {
+            if (str.startsWith(literal, i)) {
+                return i + literal.length();
+            }
+        }
+        return -1;
+    }
+
 }
@@ -0,0 +1,272 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 同じ例外が大量に発生した場合に、スタックトレースの文字列化とログ出力を抑える
+ *
+ * 接続先の障害時等は、多数のリクエストが同じ原因の例外でKai9Utils.handleExceptionに来る。
+ * 例外の原因のクラスと、原因毎の先頭のフレームから指紋(ハッシュ値)を求め、指紋毎に
+ * ・詳細(スタックトレース)の文字列を記憶し、スタックトレースが完全に一致する場合は使い回す(render)
+ * ・ログに出力した件数を数え、直近の一定時間(既定60秒)で一定件数(既定10件)を超える分は詳細を省略する(log)
+ * 直近の件数は、前の時間枠の件数を重なっている割合で按分し、今の時間枠の件数を足して見積もる(時間枠の境目でも上限の2倍まで出力しない様に)。
+ * 省略した件数は、時間枠が終わった後に、いずれかの例外のログを出力する時か、指紋が記憶から捨てられる時に1行でログに出力する。
+ *
+ * Kai9Utils.handleExceptionはログを出力しない(従来通り)。ログの量を抑えたい場合は、makeLogの代わりにlogを呼ぶ事。
+ *
+ * レスポンスのメッセージ(エラーn：クラス名: メッセージ)は毎回その例外から作るので、内容は従来と変わらない。
+ */
+public class Kai9ErrorAggregator {
+
+    // 指紋に使う、原因毎の先頭のフレーム数
+    private static final int FINGERPRINT_FRAMES = 5;
+    // 記憶する指紋の数(超えたら最も古く使われたものから捨てる)
+    private static final int CACHE_SIZE = 512;
+
+    private static volatile long windowMillis = 60_000L;
+    private static volatile int logLimit = 10;
+
+    private static final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            if (size() <= CACHE_SIZE) return false;
+            // 省略した件数を出力せずに捨てない様に、次のlogで出力する
+            Entry entry = eldest.getValue();
+            if (suppressing.remove(entry)) {
+                String line = takeSuppressed(entry, Long.MAX_VALUE, 0);
+                if (line != null) pendingLines.add(line);
+            }
+            return true;
+        }
+    };
+    // 今の時間枠で省略した件数が有る指紋(entriesのロック内で扱う)
+    private static final Set<Entry> suppressing = new LinkedHashSet<>();
+    // 記憶から捨てた指紋の、省略した件数のログ(entriesのロック内で扱う)
+    private static final List<String> pendingLines = new ArrayList<>();
+    private static final LongAdder DETAIL_CACHE_HITS = Kai9Metrics.counter("error_detail_cache_hits");
+    private static final LongAdder LOGGED_ERRORS = Kai9Metrics.counter("error_logs");
+    private static final LongAdder SUPPRESSED_LOGS = Kai9Metrics.counter("error_logs_suppressed");
+
+    // 指紋毎の記憶
+    private static class Entry {
+        // 詳細の文字列と、その元になったスタックトレース
+        StackTraceElement[][] traces;
+        String detail;
+        // 時間枠の開始時刻と、前の時間枠・今の時間枠でログに出力した件数
+        long windowStart;
+        int previousCount;
+        int count;
+        // 今の時間枠で省略した件数と、その時に出力する例外の説明
+        long suppressed;
+        String description;
+    }
+
+    /**
+     * 時間枠の長さを設定する
+     *
+     * @param millis 時間枠の長さ(ミリ秒)
+     */
+    public static void setWindowMillis(long millis) {
+        windowMillis = millis;
+    }
+
+    /**
+     * 時間枠毎に詳細をログ出力する件数を設定する
+     *
+     * @param limit 件数
+     */
+    public static void setLogLimit(int limit) {
+        logLimit = limit;
+    }
+
+    /**
+     * 記憶を全て消去する
+     */
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+            suppressing.clear();
+            pendingLines.clear();
+        }
+    }
+
+    /**
+     * 例外の指紋を返す(原因のクラスと、原因毎の先頭のフレームから求める)
+     */
+    public static long fingerprint(Throwable e) {
+        List<Throwable> causes = StackTraceRenderer.causesOf(e);
+        return fingerprint(causes, StackTraceRenderer.tracesOf(causes));
+    }
+
+    private static long fingerprint(List<Throwable> causes, StackTraceElement[][] traces) {
+        long hash = 1125899906842597L;
+        for (int i = 0; i < causes.size(); i++) {
+            hash = 31 * hash + causes.get(i).getClass().getName().hashCode();
+            StackTraceElement[] trace = traces[i];
+            for (int j = 0; j < trace.length && j < FINGERPRINT_FRAMES; j++) {
+                hash = 31 * hash + trace[j].hashCode();
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 例外を文字列にする(StackTraceRenderer.renderと同じ内容)
+     * 同じスタックトレースの例外が続く場合、詳細は記憶したものを使い回す
+     *
+     * @param e 例外
+     * @param header 先頭の見出し(nullの場合は出力しない)
+     * @param withDetail 詳細(スタックトレース)を出力するかどうか
+     */
+    public static String render(Throwable e, String header, boolean withDetail) {
+        List<Throwable> causes = StackTraceRenderer.causesOf(e);
+        if (!withDetail) {
+            StringBuilder message = new StringBuilder(256 + causes.size() * 128);
+            StackTraceRenderer.getDefault().appendSummary(message, header, causes);
+            return message.toString();
+        }
+        StackTraceElement[][] traces = StackTraceRenderer.tracesOf(causes);
+        return render(causes, traces, entryOf(fingerprint(causes, traces)), header);
+    }
+
+    private static String render(List<Throwable> causes, StackTraceElement[][] traces, Entry entry, String header) {
+        StackTraceRenderer renderer = StackTraceRenderer.getDefault();
+        StringBuilder message = new StringBuilder(256 + causes.size() * 128);
+        renderer.appendSummary(message, header, causes);
+        message.append(detailOf(renderer, causes, traces, entry));
+        return message.toString();
+    }
+
+    // 詳細の文字列(スタックトレースが記憶したものと完全に一致する場合は使い回す)
+    private static String detailOf(StackTraceRenderer renderer, List<Throwable> causes, StackTraceElement[][] traces, Entry entry) {
+        // 抑制された例外はメッセージが詳細に含まれるので、有る場合は使い回さない
+        boolean cacheable = true;
+        for (Throwable cause : causes) {
+            if (cause.getSuppressed().length > 0) {
+                cacheable = false;
+                break;
+            }
+        }
+        if (!cacheable) {
+            return renderer.renderDetails(causes, traces);
+        }
+
+        synchronized (entry) {
+            if (entry.detail != null && Arrays.deepEquals(entry.traces, traces)) {
+                DETAIL_CACHE_HITS.increment();
+                return entry.detail;
+            }
+        }
+        String detail = renderer.renderDetails(causes, traces);
+        synchronized (entry) {
+            entry.traces = traces;
+            entry.detail = detail;
+        }
+        return detail;
+    }
+
+    private static Entry entryOf(long fingerprint) {
+        synchronized (entries) {
+            return entries.computeIfAbsent(fingerprint, k -> new Entry());
+        }
+    }
+
+    /**
+     * 例外をログに出力する(同じ指紋の例外は、直近の一定時間で一定件数まで詳細を出力する)
+     *
+     * @param e 例外
+     * @param clazz ログの出力元
+     */
+    public static void log(Throwable e, Class<?> clazz) {
+        List<Throwable> causes = StackTraceRenderer.causesOf(e);
+        StackTraceElement[][] traces = StackTraceRenderer.tracesOf(causes);
+        Entry entry = entryOf(fingerprint(causes, traces));
+
+        long now = System.currentTimeMillis();
+        long window = Math.max(1L, windowMillis);
+        List<String> lines = new ArrayList<>();
+        boolean logDetail;
+        boolean startedSuppressing = false;
+        synchronized (entry) {
+            if (entry.description == null) {
+                Throwable root = causes.get(causes.size() - 1);
+                entry.description = root.getClass().getName() + ": " + root.getMessage();
+            }
+            // 時間枠が終わっていれば、先に省略した件数を出力してから時間枠を進める
+            String line = takeSuppressed(entry, now, window);
+            if (line != null) lines.add(line);
+            advance(entry, now, window);
+            // 直近の一定時間の件数 = 前の時間枠の件数 × 重なっている割合 + 今の時間枠の件数
+            double overlap = 1.0 - (double) (now - entry.windowStart) / window;
+            logDetail = entry.previousCount * overlap + entry.count < logLimit;
+            if (logDetail) {
+                entry.count++;
+            } else {
+                startedSuppressing = entry.suppressed++ == 0;
+            }
+        }
+
+        // 時間枠が終わった他の指紋と、記憶から捨てた指紋の省略件数を出力する
+        synchronized (entries) {
+            for (Iterator<Entry> it = suppressing.iterator(); it.hasNext();) {
+                Entry suppressed = it.next();
+                String line = takeSuppressed(suppressed, now, window);
+                if (line != null) {
+                    lines.add(line);
+                    it.remove();
+                } else {
+                    // 自身のlogで出力済みの指紋も外す
+                    synchronized (suppressed) {
+                        if (suppressed.suppressed == 0) it.remove();
+                    }
+                }
+            }
+            if (startedSuppressing) {
+                suppressing.add(entry);
+            }
+            lines.addAll(pendingLines);
+            pendingLines.clear();
+        }
+        for (String line : lines) {
+            Kai9Utils.makeLog("warn", line, clazz);
+        }
+
+        if (logDetail) {
+            LOGGED_ERRORS.increment();
+            Kai9Utils.makeLog("error", render(causes, traces, entry, null), clazz);
+        } else {
+            SUPPRESSED_LOGS.increment();
+        }
+    }
+
+    // 時間枠を進める(1つ先の時間枠なら今の件数を前の件数にし、それより先なら両方を0にする)
+    private static void advance(Entry entry, long now, long window) {
+        long elapsed = now - entry.windowStart;
+        if (elapsed < window) return;
+        long windows = elapsed / window;
+        entry.previousCount = (windows == 1) ? entry.count : 0;
+        entry.count = 0;
+        entry.windowStart += windows * window;
+    }
+
+    // 省略した件数のログを返し、件数を0にする(時間枠が終わっていない、または省略した件数が無い場合はnull)
+    private static String takeSuppressed(Entry entry, long now, long window) {
+        synchronized (entry) {
+            if (entry.suppressed == 0) return null;
+            if (window > 0 && now - entry.windowStart < window) return null;
+            String line = "同じ例外のログ出力を" + entry.suppressed + "件省略しました。(" + entry.description + ")";
+            entry.suppressed = 0;
+            return line;
+        }
+    }
+}
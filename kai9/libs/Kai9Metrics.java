@@ -0,0 +1,261 @@
+package kai9.libs;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import lombok.Getter;
+
+/**
+ * 計測値(TimeMeasurementのタイマー、件数のカウンタ、ヒープ・GC・スレッドの値)をまとめて取得し、
+ * Prometheusのテキスト形式またはJSONで出力する
+ *
+ * TimeMeasurement.logPrint や Kai9Utils.logMemoryInfo は人が読む為の出力なので、
+ * 監視ツールから収集する場合はこちらのスナップショットを使う。
+ *
+ * Micrometerには依存しない。Micrometerに登録する場合は、アプリ側で以下の様にスナップショットの値を参照する。
+ * Gauge.builder("kai9.heap.used", () -> Kai9Metrics.snapshot().getGauges().get("jvm_memory_heap_used_bytes")).register(registry);
+ *
+ * 使用例 ↓
+ *
+ * Kai9Metrics.increment("import_rows");
+ * Kai9Metrics.gauge("queue_size", () -> queue.size());
+ *
+ * @GetMapping(value = "/metrics", produces = "text/plain; version=0.0.4")
+ * public String metrics() {
+ *     return Kai9Metrics.snapshot().toPrometheus();
+ * }
+ */
+public class Kai9Metrics {
+
+    // 出力時の名前の接頭辞
+    private static final String PREFIX = "kai9_";
+    // Prometheusのsummaryとして出力する分位点
+    private static final String[] QUANTILES = { "0.5", "0.95", "0.99", "0.999" };
+
+    // カウンタ名 → 件数
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    // 利用側で登録したゲージ名 → 値の取得方法
+    private static final ConcurrentMap<String, DoubleSupplier> customGauges = new ConcurrentHashMap<>();
+
+    /**
+     * カウンタを返す(無い場合は作成)
+     *
+     * @param name カウンタ名
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * カウンタに1を加算
+     *
+     * @param name カウンタ名
+     */
+    public static void increment(String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * カウンタに加算
+     *
+     * @param name カウンタ名
+     * @param value 加算する値
+     */
+    public static void add(String name, long value) {
+        counter(name).add(value);
+    }
+
+    /**
+     * ゲージを登録(スナップショットの度に値を取得する)
+     *
+     * @param name ゲージ名
+     * @param supplier 値の取得方法
+     */
+    public static void gauge(String name, DoubleSupplier supplier) {
+        customGauges.put(name, supplier);
+    }
+
+    /**
+     * ゲージの登録を解除
+     *
+     * @param name ゲージ名
+     */
+    public static void removeGauge(String name) {
+        customGauges.remove(name);
+    }
+
+    /**
+     * 現在の計測値を取得
+     */
+    public static Snapshot snapshot() {
+        return new Snapshot(TimeMeasurement.snapshot(), counterValues(), gaugeValues());
+    }
+
+    /**
+     * 現在の計測値を取得し、TimeMeasurementのタイマーをリセットする(定期的にJSONで出力する場合等)
+     * カウンタは累積値のままとする
+     */
+    public static Snapshot snapshotAndReset() {
+        return new Snapshot(TimeMeasurement.snapshotAndReset(), counterValues(), gaugeValues());
+    }
+
+    private static Map<String, Long> counterValues() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        return values;
+    }
+
+    // ヒープ・GC・スレッドの値と、利用側で登録したゲージの値
+    private static Map<String, Double> gaugeValues() {
+        Map<String, Double> values = new LinkedHashMap<>();
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        values.put("jvm_memory_heap_used_bytes", (double) heap.getUsed());
+        values.put("jvm_memory_heap_committed_bytes", (double) heap.getCommitted());
+        values.put("jvm_memory_heap_max_bytes", (double) heap.getMax());
+        values.put("jvm_memory_nonheap_used_bytes", (double) nonHeap.getUsed());
+        values.put("jvm_memory_nonheap_committed_bytes", (double) nonHeap.getCommitted());
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = sanitize(gc.getName()).toLowerCase();
+            values.put("jvm_gc_" + name + "_collections", (double) gc.getCollectionCount());
+            values.put("jvm_gc_" + name + "_seconds", gc.getCollectionTime() / 1000.0);
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        values.put("jvm_threads_live", (double) threads.getThreadCount());
+        values.put("jvm_threads_daemon", (double) threads.getDaemonThreadCount());
+        values.put("jvm_threads_peak", (double) threads.getPeakThreadCount());
+        values.put("jvm_uptime_seconds", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+
+        for (Map.Entry<String, DoubleSupplier> entry : new TreeMap<>(customGauges).entrySet()) {
+            values.put(sanitize(entry.getKey()), entry.getValue().getAsDouble());
+        }
+        return values;
+    }
+
+    // Prometheusのメトリクス名に使えない文字を'_'にする
+    private static String sanitize(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' || (i > 0 && c >= '0' && c <= '9');
+            sb.append(valid ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    // Prometheusのラベルの値をエスケープする
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * ある時点の計測値
+     */
+    @Getter
+    public static final class Snapshot {
+        // 取得時刻(エポックミリ秒)
+        private final long timestamp = System.currentTimeMillis();
+        private final List<TimeMeasurement.Stats> timers;
+        private final Map<String, Long> counters;
+        private final Map<String, Double> gauges;
+
+        Snapshot(List<TimeMeasurement.Stats> timers, Map<String, Long> counters, Map<String, Double> gauges) {
+            this.timers = Collections.unmodifiableList(timers);
+            this.counters = Collections.unmodifiableMap(counters);
+            this.gauges = Collections.unmodifiableMap(gauges);
+        }
+
+        /**
+         * Prometheusのテキスト形式(version 0.0.4)で出力
+         * タイマーは秒単位のsummary(分位点・合計・回数)と最大値のgauge、カウンタはcounter、その他はgaugeとする
+         */
+        public String toPrometheus() {
+            StringBuilder sb = new StringBuilder(4096);
+
+            if (!timers.isEmpty()) {
+                sb.append("# TYPE ").append(PREFIX).append("timer_seconds summary\n");
+                for (TimeMeasurement.Stats stats : timers) {
+                    String label = "timer=\"" + escapeLabel(stats.getTimerName()) + "\"";
+                    long[] quantiles = { stats.getP50Nanos(), stats.getP95Nanos(), stats.getP99Nanos(), stats.getP999Nanos() };
+                    for (int i = 0; i < QUANTILES.length; i++) {
+                        sb.append(PREFIX).append("timer_seconds{").append(label).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+                                .append(seconds(quantiles[i])).append('\n');
+                    }
+                    sb.append(PREFIX).append("timer_seconds_sum{").append(label).append("} ").append(seconds(stats.getTotalNanos())).append('\n');
+                    sb.append(PREFIX).append("timer_seconds_count{").append(label).append("} ").append(stats.getCount()).append('\n');
+                }
+                sb.append("# TYPE ").append(PREFIX).append("timer_max_seconds gauge\n");
+                for (TimeMeasurement.Stats stats : timers) {
+                    sb.append(PREFIX).append("timer_max_seconds{timer=\"").append(escapeLabel(stats.getTimerName())).append("\"} ")
+                            .append(seconds(stats.getMaxNanos())).append('\n');
+                }
+            }
+
+            for (Map.Entry<String, Long> entry : counters.entrySet()) {
+                String name = PREFIX + sanitize(entry.getKey()) + "_total";
+                sb.append("# TYPE ").append(name).append(" counter\n");
+                sb.append(name).append(' ').append(entry.getValue()).append('\n');
+            }
+
+            for (Map.Entry<String, Double> entry : gauges.entrySet()) {
+                String name = PREFIX + entry.getKey();
+                sb.append("# TYPE ").append(name).append(" gauge\n");
+                sb.append(name).append(' ').append(entry.getValue()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        /**
+         * JSONで出力(タイマーの時間はナノ秒)
+         */
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("timestamp", timestamp);
+
+            JSONArray timerArray = new JSONArray();
+            for (TimeMeasurement.Stats stats : timers) {
+                JSONObject timer = new JSONObject();
+                timer.put("name", stats.getTimerName());
+                timer.put("count", stats.getCount());
+                timer.put("totalNanos", stats.getTotalNanos());
+                timer.put("minNanos", stats.getMinNanos());
+                timer.put("maxNanos", stats.getMaxNanos());
+                timer.put("meanNanos", stats.getMeanNanos());
+                timer.put("p50Nanos", stats.getP50Nanos());
+                timer.put("p95Nanos", stats.getP95Nanos());
+                timer.put("p99Nanos", stats.getP99Nanos());
+                timer.put("p999Nanos", stats.getP999Nanos());
+                timerArray.put(timer);
+            }
+            json.put("timers", timerArray);
+            json.put("counters", new JSONObject(counters));
+            json.put("gauges", new JSONObject(gauges));
+            return json;
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / 1_000_000_000.0;
+        }
+    }
+}
@@ -3,9 +3,6 @@ package kai9.libs;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringReader;
-import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -13,9 +10,11 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 
 import javax.crypto.Cipher;
@@ -38,6 +37,8 @@ import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PropertiesLoaderUtils;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -69,6 +70,33 @@ public class Kai9Utils {
         Kai9Utils.jdbcTemplate_com = jdbcTemplate_com;
     }
 
+    // ログインID → 権限レベル(GetExceptionの度にDBを参照しない様に、一定時間記憶する)
+    private static final int AUTHORITY_CACHE_SIZE = 1024;
+    // 存在しないユーザを表す権限レベル
+    private static final int AUTHORITY_NOT_FOUND = -1;
+    private static final long AUTHORITY_NOT_FOUND_TTL_MILLIS = 10_000L;
+    private static volatile long authorityCacheTtlMillis = 60_000L;
+    private static final Map<String, AuthorityEntry> authorityCache = new LinkedHashMap<String, AuthorityEntry>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, AuthorityEntry> eldest) {
+            return size() > AUTHORITY_CACHE_SIZE;
+        }
+    };
+    private static final LongAdder AUTHORITY_CACHE_HITS = Kai9Metrics.counter("authority_cache_hits");
+    private static final LongAdder AUTHORITY_CACHE_MISSES = Kai9Metrics.counter("authority_cache_misses");
+
+    private static class AuthorityEntry {
+        final int authority_lv;
+        final long expiresAt;
+
+        AuthorityEntry(int authority_lv, long expiresAt) {
+            this.authority_lv = authority_lv;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     /**
      * 例外を処理し、JsonResponseを生成するメソッド
      * 
@@ -124,8 +152,6 @@ public class Kai9Utils {
      * 例外メッセージの出方を、ユーザの権限で変える。管理者権限の場合、詳細なスタックトレースを表示する
      */
     public static String GetException(Exception e) {
-        String crlf = System.lineSeparator(); // 改行コード
-
         // 認証ユーザ取得
         int authority_lv = 2; // 一番権限の低い参照専用をデフォルトにする
         try {
@@ -136,79 +162,85 @@ public class Kai9Utils {
             // anonymousUserの場合、アベンドするので、例外を無視してauthority_lv = 2を維持する
         }
 
-        // 出力するための StringBuilder を準備
-        StringBuilder message = new StringBuilder();
+        // 管理者権限がある場合、詳細なスタックトレースを追加
+        return Kai9ErrorAggregator.render(e, "【エラーが発生しました】", authority_lv == 3);
+    }
 
-        // 例外の原因をリストに格納
-        List<Throwable> causes = new ArrayList<>();
-        Throwable cause = e;
-        while (cause != null) {
-            causes.add(cause);
-            cause = cause.getCause();
+    /**
+     * 例外メッセージ中の特殊文字をエスケープ
+     * 例外文字に制御文字が入るとReact側で制御不能に陥るのでエスケープする
+     */
+    public static String escapeMessage(String message) {
+        if (message == null) {
+            return null;
         }
-
-        // 【エラーが発生しました】部分
-        message.append("【エラーが発生しました】").append(crlf);
-
-        // 直接原因部分（リストの最後の要素から順に出力）
-        for (int i = causes.size() - 1; i >= 0; i--) {
-            Throwable currentCause = causes.get(i);
-            message.append("エラー").append(causes.size() - i).append("：")
-                    .append(currentCause.getClass().getName()).append(": ")
-                    .append(currentCause.getMessage()).append(crlf + crlf);
+        // エスケープ対象の文字が無ければそのまま返す
+        int length = message.length();
+        int first = 0;
+        while (first < length && !needsEscape(message.charAt(first))) {
+            first++;
+        }
+        if (first == length) {
+            return message;
         }
 
-        // 管理者権限がある場合、詳細部分を追加
-        if (authority_lv == 3) {
-            // 詳細部分もリストの最後の要素から順に出力
-            int detailCount = 1;
-            for (int i = causes.size() - 1; i >= 0; i--) {
-                Throwable currentCause = causes.get(i);
-                StringWriter sw = new StringWriter();
-                PrintWriter pw = new PrintWriter(sw);
-                currentCause.printStackTrace(pw);
-                message.append("【詳細").append(detailCount).append("】").append(crlf);
-
-                // スタックトレース全体から詳細を取得（2行目以降）
-                try (BufferedReader br = new BufferedReader(new StringReader(sw.toString()))) {
-                    br.readLine(); // 1行目はスキップ（既に取得済み）
-                    String line;
-                    while ((line = br.readLine()) != null) {
-                        message.append(line).append(crlf);
-                    }
-                    message.append(crlf);
-                } catch (IOException ioException) {
-                    // 例外処理（通常はここには来ないはず）
-                }
-
-                detailCount++;
+        // 1文字が3文字になるので、多少余裕を持たせる
+        StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(message, 0, first);
+        for (int i = first; i < length; i++) {
+            char c = message.charAt(i);
+            if (needsEscape(c)) {
+                sb.append('%').append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+            } else {
+                sb.append(c);
             }
         }
-
-        return message.toString();
+        return sb.toString();
     }
 
     /**
-     * 例外メッセージ中の特殊文字をエスケープ
-     * 例外文字に制御文字が入るとReact側で制御不能に陥るのでエスケープする
+     * escapeMessageでエスケープした文字列を元に戻す
+     * エスケープ対象の文字を表す"%XX"だけを戻し、それ以外の'%'はそのまま残す
      */
-    public static String escapeMessage(String message) {
+    public static String unescapeMessage(String message) {
         if (message == null) {
             return null;
         }
-        return message.replaceAll("%", "%25")
-                .replaceAll("\n", "%0A")
-                .replaceAll("\r", "%0D")
-                .replaceAll("\t", "%09")
-                .replaceAll("\b", "%08")
-                .replaceAll("\f", "%0C")
-                .replaceAll("\\\\", "%5C")
-                .replaceAll("\"", "%22")
-                .replaceAll("'", "%27")
-                .replaceAll("#", "%23")
-                .replaceAll("&", "%26")
-                .replaceAll("<", "%3C")
-                .replaceAll(">", "%3E");
+        int first = message.indexOf('%');
+        if (first < 0) {
+            return message;
+        }
+
+        int length = message.length();
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(message, 0, first);
+        for (int i = first; i < length; i++) {
+            char c = message.charAt(i);
+            if (c == '%' && i + 2 < length) {
+                int high = Character.digit(message.charAt(i + 1), 16);
+                int low = Character.digit(message.charAt(i + 2), 16);
+                if (high >= 0 && low >= 0 && needsEscape((char) (high << 4 | low))) {
+                    sb.append((char) (high << 4 | low));
+                    i += 2;
+                    continue;
+                }
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    // escapeMessageで"%XX"にする文字(React側で制御不能になる制御文字と、URLやHTMLで意味を持つ記号)
+    private static final boolean[] ESCAPE_TARGETS = new boolean[128];
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    static {
+        for (char c : "%\n\r\t\b\f\\\"'#&<>".toCharArray()) {
+            ESCAPE_TARGETS[c] = true;
+        }
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < ESCAPE_TARGETS.length && ESCAPE_TARGETS[c];
     }
 
     /**
@@ -218,13 +250,101 @@ public class Kai9Utils {
      * @return int ユーザの権限レベル(1:一般、2:参照専用、3:管理者)
      */
     public static int getauthority_lvByLoginID(String login_id) {
-        String sql = "select * from m_user_a where login_id = ?";
-        // JdbcTemplateを利用して、SQLを実行。取得したMapから権限レベルを返す
-        Map<String, Object> map = jdbcTemplate_com.queryForMap(sql, login_id);
-        int authority_lv = (int) map.get("authority_lv");
+        // 有効期限内の記憶が有れば、DBを参照せずに返す
+        long now = System.currentTimeMillis();
+        AuthorityEntry entry = null;
+        if (authorityCacheTtlMillis > 0) {
+            synchronized (authorityCache) {
+                entry = authorityCache.get(login_id);
+            }
+        }
+        if (entry != null && entry.expiresAt > now) {
+            AUTHORITY_CACHE_HITS.increment();
+            if (entry.authority_lv == AUTHORITY_NOT_FOUND) {
+                throw new EmptyResultDataAccessException(1);
+            }
+            return entry.authority_lv;
+        }
+        AUTHORITY_CACHE_MISSES.increment();
+
+        String sql = "select authority_lv from m_user_a where login_id = ?";
+        int authority_lv;
+        try {
+            // JdbcTemplateを利用して、SQLを実行。権限レベルの列だけを取得する
+            authority_lv = jdbcTemplate_com.queryForObject(sql, Integer.class, login_id);
+        } catch (EmptyResultDataAccessException notFound) {
+            // 存在しないユーザも短時間記憶する(anonymousUser等で毎回DBを参照しない様に)
+            putAuthority(login_id, AUTHORITY_NOT_FOUND, now + AUTHORITY_NOT_FOUND_TTL_MILLIS);
+            throw notFound;
+        } catch (DataAccessException dbError) {
+            // DBに障害が有る場合は、期限切れの記憶でも返す(エラー処理でDBへの負荷を増やさない様に)
+            if (entry != null && entry.authority_lv != AUTHORITY_NOT_FOUND) {
+                return entry.authority_lv;
+            }
+            throw dbError;
+        }
+        putAuthority(login_id, authority_lv, now + authorityCacheTtlMillis);
         return authority_lv;
     }
 
+    private static void putAuthority(String login_id, int authority_lv, long expiresAt) {
+        // 記憶しない設定の場合は、存在しないユーザも含めて記憶しない
+        if (authorityCacheTtlMillis <= 0) {
+            return;
+        }
+        synchronized (authorityCache) {
+            authorityCache.put(login_id, new AuthorityEntry(authority_lv, expiresAt));
+        }
+    }
+
+    /**
+     * 権限レベルの記憶を消去する(ユーザの権限を変更・削除した場合に呼ぶ)
+     * ユーザを作成した場合も呼ぶ事(作成前に参照されていると、存在しないユーザとして最大10秒記憶している為)
+     * 
+     * @param login_id ログインID
+     */
+    public static void invalidateAuthority(String login_id) {
+        synchronized (authorityCache) {
+            authorityCache.remove(login_id);
+        }
+    }
+
+    /**
+     * 全ユーザの権限レベルの記憶を消去する
+     */
+    public static void clearAuthorityCache() {
+        synchronized (authorityCache) {
+            authorityCache.clear();
+        }
+    }
+
+    /**
+     * 権限レベルを記憶する時間を設定する
+     * 0以下の場合は記憶せず、既存の記憶も消去する(存在しないユーザの記憶や、DB障害時に期限切れの記憶を返す動作も行わない)
+     * 
+     * @param ttlMillis 記憶する時間(ミリ秒)
+     */
+    public static void setAuthorityCacheTtl(long ttlMillis) {
+        authorityCacheTtlMillis = ttlMillis;
+        if (ttlMillis <= 0) {
+            clearAuthorityCache();
+        }
+    }
+
+    /**
+     * 権限レベルを記憶から返した回数を返す
+     */
+    public static long getAuthorityCacheHitCount() {
+        return AUTHORITY_CACHE_HITS.sum();
+    }
+
+    /**
+     * 権限レベルをDBから取得した回数を返す
+     */
+    public static long getAuthorityCacheMissCount() {
+        return AUTHORITY_CACHE_MISSES.sum();
+    }
+
     /**
      * 引数のオブジェクトをJSON文字列に変換
      */
@@ -356,49 +476,7 @@ public class Kai9Utils {
      * 例外の原因を収集し、メッセージとスタックトレースを一括で生成するメソッド
      */
     public static String processExceptionMessages(Throwable e) {
-        String crlf = System.lineSeparator(); // 改行コード
-        StringBuilder message = new StringBuilder();
-        List<Throwable> causes = new ArrayList<>();
-        Throwable cause = e;
-
-        while (cause != null) {
-            causes.add(cause);
-            cause = cause.getCause();
-        }
-
-        // 直接原因部分（リストの最後の要素から順に出力）
-        for (int i = causes.size() - 1; i >= 0; i--) {
-            Throwable currentCause = causes.get(i);
-            message.append("エラー").append(causes.size() - i).append("：")
-                   .append(currentCause.getClass().getName()).append(": ")
-                   .append(currentCause.getMessage()).append(crlf).append(crlf);
-        }
-
-        // 詳細部分を追加
-        int detailCount = 1;
-        for (int i = causes.size() - 1; i >= 0; i--) {
-            Throwable currentCause = causes.get(i);
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            currentCause.printStackTrace(pw);
-            message.append("【詳細").append(detailCount).append("】").append(crlf);
-
-            // スタックトレース全体から詳細を取得（2行目以降）
-            try (BufferedReader br = new BufferedReader(new StringReader(sw.toString()))) {
-                br.readLine(); // 1行目はスキップ（既に取得済み）
-                String line;
-                while ((line = br.readLine()) != null) {
-                    message.append(line).append(crlf);
-                }
-                message.append(crlf);
-            } catch (IOException ioException) {
-                // 例外処理（通常はここには来ないはず）
-            }
-
-            detailCount++;
-        }
-
-        return message.toString();
+        return Kai9ErrorAggregator.render(e, null, true);
     }
     
 
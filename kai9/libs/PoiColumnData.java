@@ -0,0 +1,237 @@
+package kai9.libs;
+
+import java.util.BitSet;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * シートの矩形範囲を列毎の配列に一括で取り出す
+ *
+ * PoiUtil.GetNumericValueはセル毎にNumberへボックス化し、数値以外のセルは例外を捕まえて0を返すので、
+ * 大量のセルを読む取込処理では例外処理が大半の時間を占める。
+ * こちらは列毎に型を指定して、double[]・long[]・String[]・boolean[]に一括で取り出す。
+ * 型の判定はセル毎に1回だけ行い、型が合わないセルは例外にせず「値無し」として記録する。
+ *
+ * 計算式のセルはFormulaEvaluatorで再計算せず、ファイルに保存されている計算結果を使う。
+ *
+ * 使用例 ↓
+ *
+ * CellRangeAddress range = new CellRangeAddress(1, lastRow, 0, 2); ※startRow, endRow, startCol, endCol
+ * PoiColumnData data = PoiColumnData.extract(sheet, range, Type.LONG, Type.STRING, Type.DOUBLE);
+ * long[] ids = data.getLongs(0);
+ * for (int i = 0; i < data.getRowCount(); i++) {
+ *     if (data.isNull(0, i)) continue;
+ *     ...
+ * }
+ */
+public class PoiColumnData {
+
+    /**
+     * 列の型
+     */
+    public enum Type {
+        // 数値(日付はシリアル値)
+        DOUBLE,
+        // 整数(小数部が有るセルは値無し)
+        LONG,
+        // 文字列(数値はセルの表示形式で文字列化)
+        STRING,
+        // TRUE/FALSE
+        BOOLEAN
+    }
+
+    private final int rowCount;
+    private final Type[] types;
+    // 列毎の配列(double[]・long[]・String[]・boolean[])
+    private final Object[] columns;
+    // 列毎の値無しの行(空セル、型が合わないセル、エラー値)
+    private final BitSet[] nulls;
+
+    private PoiColumnData(int rowCount, Type[] types) {
+        this.rowCount = rowCount;
+        this.types = types;
+        this.columns = new Object[types.length];
+        this.nulls = new BitSet[types.length];
+        for (int i = 0; i < types.length; i++) {
+            switch (types[i]) {
+            case DOUBLE:
+                columns[i] = new double[rowCount];
+                break;
+            case LONG:
+                columns[i] = new long[rowCount];
+                break;
+            case STRING:
+                columns[i] = new String[rowCount];
+                break;
+            case BOOLEAN:
+                columns[i] = new boolean[rowCount];
+                break;
+            default:
+                throw new IllegalArgumentException("未対応の型です。: " + types[i]);
+            }
+            nulls[i] = new BitSet(rowCount);
+        }
+    }
+
+    /**
+     * 範囲内のセルを列毎の配列に取り出す
+     *
+     * @param sheet シート
+     * @param range 範囲
+     * @param types 列毎の型(範囲の列数と同じ数を指定)
+     * @return 取り出した値
+     */
+    public static PoiColumnData extract(Sheet sheet, CellRangeAddress range, Type... types) {
+        int firstCol = range.getFirstColumn();
+        int colCount = range.getLastColumn() - firstCol + 1;
+        if (types.length != colCount) {
+            throw new IllegalArgumentException("型の数(" + types.length + ")が範囲の列数(" + colCount + ")と一致しません。");
+        }
+
+        int firstRow = range.getFirstRow();
+        int rowCount = range.getLastRow() - firstRow + 1;
+        PoiColumnData data = new PoiColumnData(rowCount, types.clone());
+        DataFormatter formatter = PoiWorkbookContext.of(sheet.getWorkbook()).getDataFormatter();
+
+        for (int i = 0; i < rowCount; i++) {
+            Row row = sheet.getRow(firstRow + i);
+            if (row == null) {
+                // 空行は全ての列が値無し
+                for (int col = 0; col < colCount; col++) {
+                    data.nulls[col].set(i);
+                }
+                continue;
+            }
+            for (int col = 0; col < colCount; col++) {
+                Cell cell = row.getCell(firstCol + col);
+                if (cell == null || !data.read(col, i, cell, formatter)) {
+                    data.nulls[col].set(i);
+                }
+            }
+        }
+        return data;
+    }
+
+    // セルの値を配列に格納する(値無しの場合はfalse)
+    private boolean read(int col, int index, Cell cell, DataFormatter formatter) {
+        CellType type = cell.getCellType();
+        if (type == CellType.FORMULA) {
+            // 保存されている計算結果の型
+            type = cell.getCachedFormulaResultType();
+        }
+
+        switch (types[col]) {
+        case DOUBLE:
+            if (type != CellType.NUMERIC) return false;
+            ((double[]) columns[col])[index] = cell.getNumericCellValue();
+            return true;
+        case LONG:
+            if (type != CellType.NUMERIC) return false;
+            double value = cell.getNumericCellValue();
+            long longValue = (long) value;
+            if (longValue != value) return false;
+            ((long[]) columns[col])[index] = longValue;
+            return true;
+        case BOOLEAN:
+            if (type != CellType.BOOLEAN) return false;
+            ((boolean[]) columns[col])[index] = cell.getBooleanCellValue();
+            return true;
+        case STRING:
+            String text;
+            if (type == CellType.STRING) {
+                text = cell.getStringCellValue();
+            } else if (type == CellType.NUMERIC) {
+                // 計算式のセルも再計算させない様に、値と表示形式から直接文字列化する
+                CellStyle style = cell.getCellStyle();
+                text = formatter.formatRawCellContents(cell.getNumericCellValue(), style.getDataFormat(), style.getDataFormatString());
+            } else if (type == CellType.BOOLEAN) {
+                text = cell.getBooleanCellValue() ? "TRUE" : "FALSE";
+            } else {
+                return false;
+            }
+            ((String[]) columns[col])[index] = text;
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * 行数を返す
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * 列数を返す
+     */
+    public int getColumnCount() {
+        return types.length;
+    }
+
+    /**
+     * 列の型を返す
+     */
+    public Type getType(int col) {
+        return types[col];
+    }
+
+    /**
+     * 値無しかどうか(空セル、型が合わないセル、エラー値)
+     *
+     * @param col 範囲内の列番号(0始まり)
+     * @param row 範囲内の行番号(0始まり)
+     */
+    public boolean isNull(int col, int row) {
+        return nulls[col].get(row);
+    }
+
+    /**
+     * 列の値無しの行を返す(ビットが立っている行が値無し)
+     */
+    public BitSet getNulls(int col) {
+        return nulls[col];
+    }
+
+    /**
+     * DOUBLE列の値を返す(値無しの行は0)
+     */
+    public double[] getDoubles(int col) {
+        return (double[]) column(col, Type.DOUBLE);
+    }
+
+    /**
+     * LONG列の値を返す(値無しの行は0)
+     */
+    public long[] getLongs(int col) {
+        return (long[]) column(col, Type.LONG);
+    }
+
+    /**
+     * STRING列の値を返す(値無しの行はnull)
+     */
+    public String[] getStrings(int col) {
+        return (String[]) column(col, Type.STRING);
+    }
+
+    /**
+     * BOOLEAN列の値を返す(値無しの行はfalse)
+     */
+    public boolean[] getBooleans(int col) {
+        return (boolean[]) column(col, Type.BOOLEAN);
+    }
+
+    private Object column(int col, Type type) {
+        if (types[col] != type) {
+            throw new IllegalStateException((col + 1) + "列目は" + types[col] + "型です。(" + type + "型として取得しようとしました)");
+        }
+        return columns[col];
+    }
+}
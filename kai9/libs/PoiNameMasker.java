@@ -0,0 +1,124 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * 計算式中の名前(名前の定義)をダミー文字列に退避・復元する
+ *
+ * poiのバグで、shiftRowsの範囲に名前を参照している計算式が有ると例外になるため、
+ * PoiUtil.removeRow/removeRowsでは名前を "名前【計算式ダミー】" という文字列に置き換えてからシフトし、後で戻している。
+ *
+ * 従来は計算式毎に全ての名前でcontains/replaceしていたので(計算式数 × 名前数)の文字列走査になり、
+ * また「売上」と「売上合計」の様に前方が一致する名前を誤って置換していた。
+ * こちらは全ての名前から1つの正規表現(長い名前優先の選択)を作り、計算式1つにつき1回の走査で置換する。
+ * 名前の前後が識別子の文字の場合や、文字列リテラル内は置換しない。
+ */
+public class PoiNameMasker {
+
+    // ダミー文字列
+    public static final String DUMMY = "【計算式ダミー】";
+
+    // 退避した名前を戻すパターン("名前【計算式ダミー】" → 名前)
+    private static final Pattern RESTORE_PATTERN = Pattern.compile("\"([^\"]*)" + Pattern.quote(DUMMY) + "\"");
+
+    // 名前の一部とみなす文字
+    private static final String IDENT_CHARS = "\\p{L}\\p{N}_.\\\\";
+
+    // 名前が無い場合はnull
+    private final Pattern maskPattern;
+
+    private PoiNameMasker(Pattern maskPattern) {
+        this.maskPattern = maskPattern;
+    }
+
+    /**
+     * ワークブック内の全ての名前から置換用の正規表現を作成
+     */
+    public static PoiNameMasker of(Workbook workbook) {
+        Set<String> names = new LinkedHashSet<>();
+        for (Name name : workbook.getAllNames()) {
+            String nameName = name.getNameName();
+            if (nameName != null && !nameName.isEmpty()) {
+                names.add(nameName);
+            }
+        }
+        if (names.isEmpty()) {
+            return new PoiNameMasker(null);
+        }
+
+        // 長い名前から順に照合させる(前方一致する短い名前に先に当たらない様に)
+        List<String> sorted = new ArrayList<>(names);
+        sorted.sort(Comparator.comparingInt(String::length).reversed());
+        StringBuilder alternation = new StringBuilder();
+        for (String name : sorted) {
+            if (alternation.length() > 0) alternation.append('|');
+            alternation.append(Pattern.quote(name));
+        }
+
+        // group1: 文字列リテラル(そのまま残す)
+        // group2: シート名付きも含めた名前(直前と直後が識別子の文字、直後が関数呼出しやシート区切りの場合は除く)
+        String regex = "(\"(?:[^\"]|\"\")*\")"
+                + "|(?<![" + IDENT_CHARS + "$!\\]])"
+                + "((?:(?:'(?:[^']|'')+'|[" + IDENT_CHARS + "]+)!)?(?:" + alternation + "))"
+                + "(?![" + IDENT_CHARS + "(!\\[])";
+        return new PoiNameMasker(Pattern.compile(regex));
+    }
+
+    /**
+     * 名前が1つも無いかどうか
+     */
+    public boolean isEmpty() {
+        return maskPattern == null;
+    }
+
+    /**
+     * 退避済の計算式かどうか
+     */
+    public static boolean isMasked(String formula) {
+        return formula.contains(DUMMY);
+    }
+
+    /**
+     * 計算式中の名前をダミー文字列に置き換える(置換が無い場合は引数をそのまま返す)
+     */
+    public String mask(String formula) {
+        if (maskPattern == null || formula == null) return formula;
+        Matcher matcher = maskPattern.matcher(formula);
+        StringBuilder sb = null;
+        int last = 0;
+        while (matcher.find()) {
+            String name = matcher.group(2);
+            if (name == null) continue; // 文字列リテラル
+            if (sb == null) sb = new StringBuilder(formula.length() + 32);
+            sb.append(formula, last, matcher.start())
+                    .append('"').append(name).append(DUMMY).append('"');
+            last = matcher.end();
+        }
+        if (sb == null) return formula;
+        return sb.append(formula, last, formula.length()).toString();
+    }
+
+    /**
+     * ダミー文字列を元の名前に戻す(置換が無い場合は引数をそのまま返す)
+     */
+    public String unmask(String formula) {
+        if (formula == null || !isMasked(formula)) return formula;
+        Matcher matcher = RESTORE_PATTERN.matcher(formula);
+        StringBuilder sb = new StringBuilder(formula.length());
+        int last = 0;
+        while (matcher.find()) {
+            sb.append(formula, last, matcher.start()).append(matcher.group(1));
+            last = matcher.end();
+        }
+        return sb.append(formula, last, formula.length()).toString();
+    }
+}
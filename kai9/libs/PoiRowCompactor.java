@@ -0,0 +1,488 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.FormulaParseException;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaRenderer;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.Area3DPtg;
+import org.apache.poi.ss.formula.ptg.AreaErrPtg;
+import org.apache.poi.ss.formula.ptg.AreaPtgBase;
+import org.apache.poi.ss.formula.ptg.Deleted3DPxg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Pxg;
+import org.apache.poi.ss.formula.ptg.Pxg3D;
+import org.apache.poi.ss.formula.ptg.Ref3DPtg;
+import org.apache.poi.ss.formula.ptg.RefErrorPtg;
+import org.apache.poi.ss.formula.ptg.RefPtgBase;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Comment;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellFormulaType;
+
+/**
+ * 行の一括削除(詰め直し方式)
+ *
+ * PoiUtil.removeRowsは連続範囲毎にshiftRowsを呼ぶため、範囲の数 × (下の行数＋ワークブック内の全計算式の再解析) の計算量になり、
+ * 5万行のシートから飛び飛びに数千行を削除すると数分かかる。
+ * こちらは「旧行番号 → 新行番号」の対応表を先に作り、
+ * 1. 計算式・名前の定義の参照を1回ずつ解析して付け替え
+ * 2. 残す行を上から順に詰めて移動
+ * 3. 結合セルを付け替え
+ * の順に処理するので、削除する範囲の数に関係なくシートの大きさに比例した時間で終わる。
+ *
+ * 参照先の行が削除された場合、Excelと同様に#REF!になる。範囲参照は残った行だけに縮む。
+ * 条件付き書式と入力規則の範囲は付け替えないので、必要な場合は従来のPoiUtil.removeRowsを使う事。
+ * XSSF以外のブックや、配列数式・解析できない計算式を含む場合は従来のPoiUtil.removeRowsで処理する。
+ */
+public class PoiRowCompactor {
+
+    // 列全体の参照(A:A等)の最終行
+    private static final int MAX_ROW_INDEX = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+
+    /**
+     * 指定された行を削除し、下の行を詰める
+     *
+     * @param sheet シート
+     * @param rowIndexes 削除する行番号(順不同・重複可)
+     */
+    public static void removeRows(Sheet sheet, Collection<Integer> rowIndexes) {
+        Workbook workbook = sheet.getWorkbook();
+        int lastRowNum = sheet.getLastRowNum();
+        int[] deleted = rowIndexes.stream()
+                .filter(r -> r != null && r >= 0 && r <= lastRowNum)
+                .mapToInt(Integer::intValue)
+                .distinct()
+                .sorted()
+                .toArray();
+        if (deleted.length == 0) return;
+
+        RowMapping mapping = new RowMapping(deleted);
+
+        // 付け替え内容を先に全て求める(途中で諦める場合にシートを中途半端に書き換えないため)
+        List<FormulaChange> changes = (workbook instanceof XSSFWorkbook) ? collectChanges((XSSFWorkbook) workbook, sheet, mapping) : null;
+        if (changes == null) {
+            // 詰め直し方式で扱えない場合は従来方式
+            PoiUtil.removeRows(sheet, Arrays.stream(deleted).boxed().collect(Collectors.toList()));
+            return;
+        }
+
+        // 1. 計算式・名前の定義の参照を付け替え
+        for (FormulaChange change : changes) {
+            change.apply();
+        }
+
+        // 2. 削除行のコメント・ハイパーリンクを外してから、残す行を上へ詰める
+        for (int rowIndex : deleted) {
+            Row row = sheet.getRow(rowIndex);
+            if (row == null) continue;
+            for (Cell cell : row) {
+                if (cell.getCellComment() != null) cell.removeCellComment();
+                if (cell.getHyperlink() != null) cell.removeHyperlink();
+            }
+        }
+
+        int next = 0; // 次に削除する行(deletedの添字)
+        for (int rowIndex = deleted[0]; rowIndex <= lastRowNum; rowIndex++) {
+            if (next < deleted.length && deleted[next] == rowIndex) {
+                next++;
+                continue;
+            }
+            // 移動先は、自分より上で削除された行数だけ上
+            moveRow(sheet, rowIndex, rowIndex - next);
+        }
+
+        // 末尾に残った不要な行を削除
+        for (int rowIndex = lastRowNum - deleted.length + 1; rowIndex <= lastRowNum; rowIndex++) {
+            Row row = sheet.getRow(rowIndex);
+            if (row != null) {
+                sheet.removeRow(row);
+            }
+        }
+
+        // 3. 結合セルを付け替え
+        remapMergedRegions(sheet, mapping);
+
+        // セルが移動したので計算結果のキャッシュを破棄
+        PoiWorkbookContext.invalidate(workbook);
+    }
+
+    // 全シートの計算式と名前の定義を解析し、書き換えが必要な物を返す(詰め直し方式で扱えない場合はnull)
+    private static List<FormulaChange> collectChanges(XSSFWorkbook workbook, Sheet target, RowMapping mapping) {
+        XSSFEvaluationWorkbook fpb = XSSFEvaluationWorkbook.create(workbook);
+        String targetName = target.getSheetName();
+        List<FormulaChange> changes = new ArrayList<>();
+
+        try {
+            for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
+                Sheet sheet = workbook.getSheetAt(sheetIndex);
+                boolean self = sheet == target;
+                for (Row row : sheet) {
+                    // 削除する行の計算式は付け替え不要
+                    if (self && mapping.isDeleted(row.getRowNum())) continue;
+                    for (Cell cell : row) {
+                        if (cell.getCellType() != CellType.FORMULA) continue;
+                        if (self && cell.isPartOfArrayFormulaGroup()) return null; // 配列数式は移動できない
+
+                        String formula = cell.getCellFormula();
+                        Ptg[] ptgs = FormulaParser.parse(formula, fpb, FormulaType.CELL, sheetIndex, row.getRowNum());
+                        RemapResult result = remap(ptgs, self, targetName, mapping);
+                        boolean shared = isSharedFormula(cell);
+                        // 共有数式は親セルの式を元に展開されるので、行を動かすシートと参照先シートでは通常の式に変換しておく
+                        if (result.changed || (shared && (self || result.refersTarget))) {
+                            if (cell.isPartOfArrayFormulaGroup()) return null;
+                            String newFormula = result.changed ? FormulaRenderer.toFormulaString(fpb, ptgs) : formula;
+                            changes.add(new CellFormulaChange(cell, newFormula, shared));
+                        }
+                    }
+                }
+            }
+
+            for (Name name : workbook.getAllNames()) {
+                if (name.isFunctionName()) continue;
+                String formula = name.getRefersToFormula();
+                if (formula == null) continue;
+                Ptg[] ptgs = FormulaParser.parse(formula, fpb, FormulaType.NAMEDRANGE, name.getSheetIndex());
+                // 名前の定義はシート名付きの参照なので、自シート扱いの参照は無い
+                if (remap(ptgs, false, targetName, mapping).changed) {
+                    changes.add(new NameFormulaChange(name, FormulaRenderer.toFormulaString(fpb, ptgs)));
+                }
+            }
+        } catch (FormulaParseException | IllegalArgumentException | IllegalStateException e) {
+            // 外部参照等、解析できない計算式がある
+            return null;
+        }
+        return changes;
+    }
+
+    // 計算式の参照行を付け替える
+    private static RemapResult remap(Ptg[] ptgs, boolean self, String targetName, RowMapping mapping) {
+        RemapResult result = new RemapResult();
+        for (int i = 0; i < ptgs.length; i++) {
+            Ptg ptg = ptgs[i];
+            if (ptg instanceof RefPtgBase) {
+                if (!refersTarget(ptg, self, targetName)) continue;
+                result.refersTarget = true;
+                RefPtgBase ref = (RefPtgBase) ptg;
+                int row = ref.getRow();
+                if (mapping.isDeleted(row)) {
+                    ptgs[i] = createDeletedRef(ptg, true);
+                    result.changed = true;
+                } else {
+                    int newRow = mapping.map(row);
+                    if (newRow != row) {
+                        ref.setRow(newRow);
+                        result.changed = true;
+                    }
+                }
+            } else if (ptg instanceof AreaPtgBase) {
+                if (!refersTarget(ptg, self, targetName)) continue;
+                result.refersTarget = true;
+                AreaPtgBase area = (AreaPtgBase) ptg;
+                int firstRow = area.getFirstRow();
+                int lastRow = area.getLastRow();
+                if (firstRow == 0 && lastRow == MAX_ROW_INDEX) continue; // 列全体の参照はそのまま
+                int newFirst = mapping.mapFirst(firstRow);
+                int newLast = mapping.mapLast(lastRow);
+                if (newLast < newFirst) {
+                    // 範囲内の行が全て削除された
+                    ptgs[i] = createDeletedRef(ptg, false);
+                    result.changed = true;
+                } else if (newFirst != firstRow || newLast != lastRow) {
+                    area.setFirstRow(newFirst);
+                    area.setLastRow(newLast);
+                    result.changed = true;
+                }
+            }
+        }
+        return result;
+    }
+
+    // 参照が行を削除するシートを指しているか
+    private static boolean refersTarget(Ptg ptg, boolean self, String targetName) {
+        if (ptg instanceof Pxg) {
+            Pxg pxg = (Pxg) ptg;
+            if (pxg.getExternalWorkbookNumber() > 0) return false; // 外部ブック
+            if (pxg instanceof Pxg3D && ((Pxg3D) pxg).getLastSheetName() != null) return false; // 複数シートにまたがる参照
+            return targetName.equalsIgnoreCase(pxg.getSheetName());
+        }
+        if (ptg instanceof Ref3DPtg || ptg instanceof Area3DPtg) {
+            return false; // XSSFでは使われない
+        }
+        return self;
+    }
+
+    // 削除された参照(#REF!)を作る
+    private static Ptg createDeletedRef(Ptg ptg, boolean isRef) {
+        if (ptg instanceof Pxg) {
+            Pxg pxg = (Pxg) ptg;
+            return new Deleted3DPxg(pxg.getExternalWorkbookNumber(), pxg.getSheetName());
+        }
+        return isRef ? new RefErrorPtg() : new AreaErrPtg();
+    }
+
+    // 共有数式かどうか
+    private static boolean isSharedFormula(Cell cell) {
+        if (!(cell instanceof XSSFCell)) return false;
+        XSSFCell xcell = (XSSFCell) cell;
+        return xcell.getCTCell().isSetF() && xcell.getCTCell().getF().getT() == STCellFormulaType.SHARED;
+    }
+
+    // 行を移動する(移動先の行は、削除済か移動済の行なので中身を消して上書きする)
+    private static void moveRow(Sheet sheet, int fromIndex, int toIndex) {
+        if (fromIndex == toIndex) return;
+        Row src = sheet.getRow(fromIndex);
+        Row dst = sheet.getRow(toIndex);
+        if (dst != null) {
+            clearCells(dst);
+        }
+        if (src == null) {
+            if (dst != null) sheet.removeRow(dst);
+            return;
+        }
+        if (dst == null) {
+            dst = sheet.createRow(toIndex);
+        }
+
+        dst.setHeight(src.getHeight());
+        dst.setZeroHeight(src.getZeroHeight());
+        dst.setRowStyle(src.isFormatted() ? src.getRowStyle() : null);
+
+        for (Cell cell : src) {
+            moveCell(cell, dst.createCell(cell.getColumnIndex()));
+        }
+    }
+
+    // 行内のセルを全て削除する
+    private static void clearCells(Row row) {
+        List<Cell> cells = new ArrayList<>();
+        for (Cell cell : row) {
+            cells.add(cell);
+        }
+        for (Cell cell : cells) {
+            row.removeCell(cell);
+        }
+    }
+
+    // セルの値・書式・コメント・ハイパーリンクを移動する
+    private static void moveCell(Cell src, Cell dst) {
+        dst.setCellStyle(src.getCellStyle());
+
+        switch (src.getCellType()) {
+        case STRING:
+            dst.setCellValue(src.getRichStringCellValue());
+            break;
+        case NUMERIC:
+            dst.setCellValue(src.getNumericCellValue());
+            break;
+        case BOOLEAN:
+            dst.setCellValue(src.getBooleanCellValue());
+            break;
+        case ERROR:
+            dst.setCellErrorValue(src.getErrorCellValue());
+            break;
+        case FORMULA:
+            // 参照は付け替え済なので、式はそのまま写す
+            CachedResult cached = CachedResult.of(src);
+            dst.setCellFormula(src.getCellFormula());
+            cached.restore(dst);
+            break;
+        default:
+            break;
+        }
+
+        Comment comment = src.getCellComment();
+        if (comment != null) {
+            comment.setAddress(dst.getRowIndex(), dst.getColumnIndex());
+        }
+        Hyperlink hyperlink = src.getHyperlink();
+        if (hyperlink != null) {
+            src.removeHyperlink();
+            dst.setHyperlink(hyperlink);
+        }
+    }
+
+    // 結合セルの行を付け替える
+    private static void remapMergedRegions(Sheet sheet, RowMapping mapping) {
+        List<CellRangeAddress> regions = sheet.getMergedRegions();
+        List<CellRangeAddress> remapped = new ArrayList<>(regions.size());
+        boolean changed = false;
+        for (CellRangeAddress region : regions) {
+            int newFirst = mapping.mapFirst(region.getFirstRow());
+            int newLast = mapping.mapLast(region.getLastRow());
+            if (newFirst != region.getFirstRow() || newLast != region.getLastRow()) {
+                changed = true;
+            }
+            if (newLast < newFirst) continue; // 結合範囲が全て削除された
+            CellRangeAddress newRegion = new CellRangeAddress(newFirst, newLast, region.getFirstColumn(), region.getLastColumn());
+            if (newRegion.getNumberOfCells() > 1) {
+                remapped.add(newRegion);
+            }
+        }
+        if (!changed) return;
+
+        sheet.removeMergedRegions(IntStream.range(0, regions.size()).boxed().collect(Collectors.toList()));
+        for (CellRangeAddress region : remapped) {
+            sheet.addMergedRegionUnsafe(region);
+        }
+    }
+
+    /**
+     * 旧行番号 → 新行番号 の対応表(削除行の昇順配列を二分探索する)
+     */
+    private static final class RowMapping {
+        private final int[] deleted;
+
+        RowMapping(int[] deleted) {
+            this.deleted = deleted;
+        }
+
+        boolean isDeleted(int row) {
+            return Arrays.binarySearch(deleted, row) >= 0;
+        }
+
+        // rowより上で削除される行数
+        private int countBefore(int row) {
+            int idx = Arrays.binarySearch(deleted, row);
+            return idx >= 0 ? idx : -(idx + 1);
+        }
+
+        // row以下で削除される行数
+        private int countUpTo(int row) {
+            int idx = Arrays.binarySearch(deleted, row);
+            return idx >= 0 ? idx + 1 : -(idx + 1);
+        }
+
+        // 残る行の新しい行番号
+        int map(int row) {
+            return row - countBefore(row);
+        }
+
+        // 範囲の開始行(開始行が削除された場合は次に残る行)の新しい行番号
+        int mapFirst(int row) {
+            return row - countBefore(row);
+        }
+
+        // 範囲の終了行(終了行が削除された場合は手前で残る行)の新しい行番号
+        int mapLast(int row) {
+            return row - countUpTo(row);
+        }
+    }
+
+    // 参照の付け替え結果
+    private static final class RemapResult {
+        boolean changed;
+        boolean refersTarget;
+    }
+
+    // 計算式の書き換え内容
+    private interface FormulaChange {
+        void apply();
+    }
+
+    private static final class CellFormulaChange implements FormulaChange {
+        private final Cell cell;
+        private final String formula;
+        private final boolean shared;
+
+        CellFormulaChange(Cell cell, String formula, boolean shared) {
+            this.cell = cell;
+            this.formula = formula;
+            this.shared = shared;
+        }
+
+        @Override
+        public void apply() {
+            CachedResult cached = CachedResult.of(cell);
+            if (shared) {
+                // 共有数式の定義を外して通常の式にする
+                cell.setBlank();
+            }
+            cell.setCellFormula(formula);
+            cached.restore(cell);
+        }
+    }
+
+    private static final class NameFormulaChange implements FormulaChange {
+        private final Name name;
+        private final String formula;
+
+        NameFormulaChange(Name name, String formula) {
+            this.name = name;
+            this.formula = formula;
+        }
+
+        @Override
+        public void apply() {
+            name.setRefersToFormula(formula);
+        }
+    }
+
+    // 計算式のキャッシュされた計算結果(式を書き換えると消えるので退避して戻す)
+    private static final class CachedResult {
+        private final CellType type;
+        private final double numericValue;
+        private final String stringValue;
+        private final boolean booleanValue;
+        private final byte errorValue;
+
+        private CachedResult(CellType type, double numericValue, String stringValue, boolean booleanValue, byte errorValue) {
+            this.type = type;
+            this.numericValue = numericValue;
+            this.stringValue = stringValue;
+            this.booleanValue = booleanValue;
+            this.errorValue = errorValue;
+        }
+
+        static CachedResult of(Cell cell) {
+            CellType type = cell.getCachedFormulaResultType();
+            switch (type) {
+            case NUMERIC:
+                return new CachedResult(type, cell.getNumericCellValue(), null, false, (byte) 0);
+            case STRING:
+                return new CachedResult(type, 0, cell.getStringCellValue(), false, (byte) 0);
+            case BOOLEAN:
+                return new CachedResult(type, 0, null, cell.getBooleanCellValue(), (byte) 0);
+            case ERROR:
+                return new CachedResult(type, 0, null, false, cell.getErrorCellValue());
+            default:
+                return new CachedResult(type, 0, null, false, (byte) 0);
+            }
+        }
+
+        void restore(Cell cell) {
+            switch (type) {
+            case NUMERIC:
+                cell.setCellValue(numericValue);
+                break;
+            case STRING:
+                cell.setCellValue(stringValue);
+                break;
+            case BOOLEAN:
+                cell.setCellValue(booleanValue);
+                break;
+            case ERROR:
+                cell.setCellErrorValue(errorValue);
+                break;
+            default:
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package kai9.libs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePartName;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * エクセル(xlsx)をストリーミングで読み込むユーティリティ
+ *
+ * PoiUtil.GetStringValueはWorkbook全体をメモリに展開したSheetが前提なので、10万行クラスのファイルではヒープを大量に消費する。
+ * こちらはXSSFのイベントモデル(共有文字列表＋スタイル表＋シート部のSAX解析)で1行ずつコールバックするので、
+ * 行数に関わらずメモリ使用量がほぼ一定になる。
+ *
+ * 値はGetStringValueと同じくDataFormatterで書式化した文字列、計算式はキャッシュされた計算結果を返す。
+ * (真偽値セルは"TRUE"/"FALSE"、エラーセルは"ERROR:～"となる)
+ *
+ * 使用例 ↓
+ *
+ * PoiStreamReader.readSheet(file, "一覧", row -> {
+ *     String code = row.GetStringValue(0);
+ *     String name = row.GetStringValue(1);
+ * });
+ *
+ * 複数シートを並列に読み込む場合 ↓
+ *
+ * PoiStreamReader.readSheetsParallel(file, (sheetName, sheetIndex) -> {
+ *     if (!sheetName.startsWith("データ")) return null; // 読み飛ばす
+ *     SheetImporter importer = new SheetImporter(sheetName);
+ *     return importer::handleRow;
+ * });
+ */
+public class PoiStreamReader {
+
+    /**
+     * 1行分の読込結果を受け取るコールバック
+     */
+    @FunctionalInterface
+    public interface RowHandler {
+        void handleRow(StreamRow row);
+    }
+
+    /**
+     * 並列読込で、シート毎のRowHandlerを作成するファクトリ
+     */
+    @FunctionalInterface
+    public interface SheetHandlerFactory {
+        /**
+         * シート毎に1回、呼出元のスレッドで呼ばれる
+         *
+         * 返したRowHandlerは、そのシートを担当するワーカースレッドからだけ呼ばれる。
+         * (別々のシートのRowHandlerは同時に呼ばれるので、共有する集計先はスレッドセーフにする事)
+         *
+         * @param sheetName シート名
+         * @param sheetIndex シート番号(0始まり)
+         * @return 行毎のコールバック(nullの場合はそのシートを読み飛ばす)
+         */
+        RowHandler create(String sheetName, int sheetIndex);
+    }
+
+    /**
+     * ストリーミングで読み込んだ1行分の値
+     * メモリ節約のため同じインスタンスを使い回すので、コールバックの外で保持しない事
+     */
+    public static final class StreamRow {
+        private int rowNum = -1;
+        private String[] values = new String[16];
+        private int lastCellNum = 0;
+
+        /**
+         * 行番号(0始まり)を返す
+         */
+        public int getRowNum() {
+            return rowNum;
+        }
+
+        /**
+         * 値が存在する最後の列番号+1を返す(Row.getLastCellNumと同じ考え方)
+         */
+        public int getLastCellNum() {
+            return lastCellNum;
+        }
+
+        /**
+         * セルの文字を取得(空セルや範囲外は空文字)
+         */
+        public String GetStringValue(int col) {
+            if (col < 0 || col >= lastCellNum) return "";
+            String value = values[col];
+            return value == null ? "" : value;
+        }
+
+        /**
+         * 行の値を配列で返す(コールバックの外で保持したい場合はこちらでコピーを取る)
+         */
+        public String[] toArray() {
+            String[] copy = new String[lastCellNum];
+            for (int i = 0; i < lastCellNum; i++) {
+                copy[i] = GetStringValue(i);
+            }
+            return copy;
+        }
+
+        private void reset(int rowNum) {
+            Arrays.fill(values, 0, lastCellNum, null);
+            this.rowNum = rowNum;
+            this.lastCellNum = 0;
+        }
+
+        private void set(int col, String value) {
+            if (col >= values.length) {
+                values = Arrays.copyOf(values, Math.max(col + 1, values.length * 2));
+            }
+            values[col] = value;
+            if (col + 1 > lastCellNum) {
+                lastCellNum = col + 1;
+            }
+        }
+    }
+
+    /**
+     * シート名を指定してファイルを読み込む
+     *
+     * @param file 読込むxlsxファイル
+     * @param sheetName シート名
+     * @param handler 行毎のコールバック
+     * @throws IOException 読込に失敗した場合
+     */
+    public static void readSheet(File file, String sheetName, RowHandler handler) throws IOException {
+        OPCPackage pkg = openPackage(file);
+        try {
+            readSheet(pkg, sheetName, -1, handler);
+        } finally {
+            pkg.revert(); // 読込専用なのでcloseではなくrevertで閉じる
+        }
+    }
+
+    /**
+     * シート番号(0始まり)を指定してファイルを読み込む
+     *
+     * @param file 読込むxlsxファイル
+     * @param sheetIndex シート番号
+     * @param handler 行毎のコールバック
+     * @throws IOException 読込に失敗した場合
+     */
+    public static void readSheet(File file, int sheetIndex, RowHandler handler) throws IOException {
+        OPCPackage pkg = openPackage(file);
+        try {
+            readSheet(pkg, null, sheetIndex, handler);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * シート名を指定してストリーム(アップロードファイル等)を読み込む
+     * ※zipの構造上ストリームはパッケージとして一旦展開されるので、可能であればFile版を使う事
+     *
+     * @param in 読込むxlsxのストリーム
+     * @param sheetName シート名
+     * @param handler 行毎のコールバック
+     * @throws IOException 読込に失敗した場合
+     */
+    public static void readSheet(InputStream in, String sheetName, RowHandler handler) throws IOException {
+        OPCPackage pkg;
+        try {
+            pkg = OPCPackage.open(in);
+        } catch (OpenXML4JException e) {
+            throw new IOException("エクセルファイルを開けませんでした。", e);
+        }
+        try {
+            readSheet(pkg, sheetName, -1, handler);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    /**
+     * 全てのシートを並列に読み込む(スレッド数はCPUコア数)
+     *
+     * @param file 読込むxlsxファイル
+     * @param factory シート毎のコールバックを作成するファクトリ
+     * @throws IOException 読込に失敗した場合(最初に発生したエラー)
+     */
+    public static void readSheetsParallel(File file, SheetHandlerFactory factory) throws IOException {
+        readSheetsParallel(file, Runtime.getRuntime().availableProcessors(), factory);
+    }
+
+    /**
+     * 全てのシートを並列に読み込む
+     *
+     * 共有文字列表とスタイル表は最初に1回だけ解析し、全シートで共有する。
+     * シート部はワーカー毎にファイルを開き直して1行ずつ解析するので、同時にメモリに載るのは「スレッド数 × 1行」分だけ。
+     * アップロードファイル等のストリームは、一旦一時ファイルに保存してから呼ぶ事。
+     *
+     * @param file 読込むxlsxファイル
+     * @param threads 同時に解析するシート数
+     * @param factory シート毎のコールバックを作成するファクトリ
+     * @throws IOException 読込に失敗した場合(最初に発生したエラー。残りのシートは中断し、全てのワーカーが止まってから戻る)
+     */
+    public static void readSheetsParallel(File file, int threads, SheetHandlerFactory factory) throws IOException {
+        List<SheetTask> tasks = new ArrayList<>();
+        ReadOnlySharedStringsTable strings;
+        StylesTable styles;
+
+        OPCPackage pkg = openPackage(file);
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            strings = new ReadOnlySharedStringsTable(pkg);
+            styles = reader.getStylesTable();
+
+            // 読み込むシートと、そのRowHandlerを決める
+            XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) reader.getSheetsData();
+            int index = 0;
+            while (iter.hasNext()) {
+                iter.next().close();
+                RowHandler handler = factory.create(iter.getSheetName(), index);
+                if (handler != null) {
+                    tasks.add(new SheetTask(iter.getSheetPart().getPartName(), handler));
+                }
+                index++;
+            }
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException("エクセルファイルの解析に失敗しました。", e);
+        } finally {
+            pkg.revert();
+        }
+        if (tasks.isEmpty()) return;
+
+        // SAX解析はスレッドの割込みでは止まらないので、中断の指示は行毎に確認するフラグで伝える
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+        Throwable failure = null;
+        try {
+            for (SheetTask task : tasks) {
+                completion.submit(() -> {
+                    if (cancelled.get()) return null;
+                    try {
+                        readSheetPart(file, task.partName, styles, strings, task.handler, cancelled);
+                    } catch (ReadCancelledException e) {
+                        // 他のシートのエラーで中断した
+                    }
+                    return null;
+                });
+            }
+            // 終わった順に結果を確認し、最初のエラーで残りのシートを中断する
+            // 全てのシートの終了(中断を含む)を待つので、戻った後にRowHandlerが呼ばれる事は無い
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                        cancelled.set(true);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // 割込まれた場合は中断を指示して戻る(解析中のシートは次の行で止まる)
+            cancelled.set(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("エクセルファイルの読込が中断されました。", e);
+        } finally {
+            executor.shutdown();
+        }
+
+        if (failure instanceof IOException) throw (IOException) failure;
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new IOException("エクセルファイルの解析に失敗しました。", failure);
+    }
+
+    // 並列読込を中断する為に、行のコールバックから投げる例外
+    private static final class ReadCancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadCancelledException() {
+            super("他のシートのエラーにより中断しました。", null, false, false);
+        }
+    }
+
+    // 並列読込の1シート分
+    private static final class SheetTask {
+        private final PackagePartName partName;
+        private final RowHandler handler;
+
+        SheetTask(PackagePartName partName, RowHandler handler) {
+            this.partName = partName;
+            this.handler = handler;
+        }
+    }
+
+    // ワーカー毎にファイルを開き直してシート部を解析する(OPCPackageはスレッド間で共有できないため)
+    private static void readSheetPart(File file, PackagePartName partName, StylesTable styles, ReadOnlySharedStringsTable strings, RowHandler handler, AtomicBoolean cancelled) throws IOException, SAXException {
+        OPCPackage pkg = openPackage(file);
+        try (InputStream sheetStream = pkg.getPart(partName).getInputStream()) {
+            processSheet(styles, strings, sheetStream, handler, cancelled);
+        } finally {
+            pkg.revert();
+        }
+    }
+
+    // ファイルを読込専用で開く
+    private static OPCPackage openPackage(File file) throws IOException {
+        try {
+            return OPCPackage.open(file, PackageAccess.READ);
+        } catch (OpenXML4JException e) {
+            throw new IOException("エクセルファイルを開けませんでした。: " + file.getPath(), e);
+        }
+    }
+
+    // シート名、またはシート番号に一致するシートを解析する
+    private static void readSheet(OPCPackage pkg, String sheetName, int sheetIndex, RowHandler handler) throws IOException {
+        try {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            StylesTable styles = reader.getStylesTable();
+
+            XSSFReader.SheetIterator iter = (XSSFReader.SheetIterator) reader.getSheetsData();
+            int index = 0;
+            while (iter.hasNext()) {
+                try (InputStream sheetStream = iter.next()) {
+                    boolean matches = (sheetName != null) ? sheetName.equals(iter.getSheetName()) : index == sheetIndex;
+                    if (matches) {
+                        processSheet(styles, strings, sheetStream, handler, null);
+                        return;
+                    }
+                }
+                index++;
+            }
+        } catch (OpenXML4JException | SAXException e) {
+            throw new IOException("エクセルファイルの解析に失敗しました。", e);
+        }
+        throw new IllegalArgumentException("指定されたシートが存在しません。: " + (sheetName != null ? sheetName : String.valueOf(sheetIndex)));
+    }
+
+    // シート部をSAXで解析し、1行毎にコールバックする(cancelledがtrueになったら次の行でReadCancelledExceptionを投げて止める)
+    private static void processSheet(StylesTable styles, ReadOnlySharedStringsTable strings, InputStream sheetStream, RowHandler handler, AtomicBoolean cancelled) throws IOException, SAXException {
+        XMLReader parser;
+        try {
+            parser = XMLHelper.newXMLReader();
+        } catch (ParserConfigurationException e) {
+            throw new IOException("XMLパーサの生成に失敗しました。", e);
+        }
+        // formulasNotResults=falseで、計算式はキャッシュされた計算結果を受け取る
+        // DataFormatterはスレッドセーフでは無いので、シート毎に作成する
+        parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, new RowCollector(handler, cancelled), new DataFormatter(), false));
+        parser.parse(new InputSource(sheetStream));
+    }
+
+    // SAXのセル通知を行単位に束ねてRowHandlerへ渡す
+    private static final class RowCollector implements SheetContentsHandler {
+        private final RowHandler handler;
+        private final AtomicBoolean cancelled; // 中断の指示(並列読込以外はnull)
+        private final StreamRow row = new StreamRow();
+        private int nextCol = 0;
+
+        RowCollector(RowHandler handler, AtomicBoolean cancelled) {
+            this.handler = handler;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            if (cancelled != null && cancelled.get()) {
+                throw new ReadCancelledException();
+            }
+            row.reset(rowNum);
+            nextCol = 0;
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            handler.handleRow(row);
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            // セル参照が省略されているファイルもあるので、その場合は直前の列の次とみなす
+            int col = (cellReference != null) ? columnIndexOf(cellReference) : nextCol;
+            row.set(col, formattedValue);
+            nextCol = col + 1;
+        }
+    }
+
+    // "AB12"の様なセル参照から列番号(0始まり)を求める(CellReferenceを生成しない軽量版)
+    static int columnIndexOf(String cellReference) {
+        int col = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char c = cellReference.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                col = col * 26 + (c - 'A' + 1);
+            } else if (c >= 'a' && c <= 'z') {
+                col = col * 26 + (c - 'a' + 1);
+            } else if (c != '$') {
+                break;
+            }
+        }
+        return col - 1;
+    }
+}
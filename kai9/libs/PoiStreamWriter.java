@@ -0,0 +1,261 @@
+package kai9.libs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * 大量行のエクセル出力用ライタ(SXSSF)
+ *
+ * PoiUtilの書式設定系メソッドは出力済の範囲に後から書式を設定するので、ワークブック全体をメモリに保持する必要がある。
+ * こちらはSXSSFWorkbookで直近の行(既定100行)だけをメモリに残し、それより前の行は一時ファイルに書き出す。
+ * 書式(罫線・背景色/フォント色・文字列書式・取り消し線)は行を出力する時点で設定する事。
+ * 一時ファイルに書き出された行には後から書式を設定できない。
+ *
+ * スタイルはPoiStyleRegistryで値毎に1つだけ作成するので、行数が増えてもスタイル数は増えない。
+ *
+ * 使用例 ↓
+ *
+ * try (PoiStreamWriter writer = new PoiStreamWriter()) {
+ *     Sheet sheet = writer.createSheet("一覧");
+ *     Row header = writer.writeRow(sheet, "ID", "名前", "更新日");
+ *     writer.setCellBackgroundAndFontColor(header, 0, 2, IndexedColors.LIGHT_GREEN, IndexedColors.WHITE);
+ *     writer.setGridLines(header, 0, 2);
+ *     for (User user : users) {
+ *         Row row = writer.writeRow(sheet, user.getId(), user.getName(), user.getUpdateDate());
+ *         writer.setGridLines(row, 0, 2);
+ *     }
+ *     writer.write(response, "一覧.xlsx");
+ * }
+ */
+public class PoiStreamWriter implements Closeable {
+
+    // メモリに保持する行数の既定値
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+
+    private static final String CONTENT_TYPE = "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    private static final PoiStyleSpec DATE_FORMAT = PoiStyleSpec.create().dataFormat("yyyy/mm/dd");
+    private static final PoiStyleSpec DATE_TIME_FORMAT = PoiStyleSpec.create().dataFormat("yyyy/mm/dd hh:mm:ss");
+
+    private final SXSSFWorkbook workbook;
+    private final PoiStyleRegistry registry;
+    // シート → 次に出力する行番号
+    private final Map<Sheet, Integer> nextRows = new HashMap<>();
+
+    public PoiStreamWriter() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize メモリに保持する行数
+     */
+    public PoiStreamWriter(int windowSize) {
+        this(new SXSSFWorkbook(windowSize));
+    }
+
+    /**
+     * テンプレートのワークブックに行を追加出力する
+     *
+     * テンプレートに既に有る行は変更できない(追加する行はテンプレートの最終行より後にする事)
+     *
+     * @param template テンプレート
+     * @param windowSize メモリに保持する行数
+     */
+    public PoiStreamWriter(XSSFWorkbook template, int windowSize) {
+        this(new SXSSFWorkbook(template, windowSize));
+    }
+
+    private PoiStreamWriter(SXSSFWorkbook workbook) {
+        this.workbook = workbook;
+        // 一時ファイルは行数に比例して大きくなるので圧縮しておく
+        this.workbook.setCompressTempFiles(true);
+        this.registry = PoiStyleRegistry.of(workbook);
+    }
+
+    /**
+     * 出力先のワークブックを返す(印刷設定や列幅の設定等に使用)
+     */
+    public SXSSFWorkbook getWorkbook() {
+        return workbook;
+    }
+
+    /**
+     * シートを作成
+     */
+    public Sheet createSheet(String sheetName) {
+        return workbook.createSheet(sheetName);
+    }
+
+    /**
+     * シートを返す(テンプレートのシートに追加出力する場合)
+     */
+    public Sheet getSheet(String sheetName) {
+        return workbook.getSheet(sheetName);
+    }
+
+    /**
+     * 次の行を作成
+     */
+    public Row createRow(Sheet sheet) {
+        Integer next = nextRows.get(sheet);
+        if (next == null) {
+            // テンプレートのシートは既存行の次から
+            // テンプレートの行はSXSSFSheetからは見えないので、元のXSSFSheetで数える
+            Sheet template = workbook.getXSSFWorkbook().getSheet(sheet.getSheetName());
+            next = (template == null || template.getPhysicalNumberOfRows() == 0) ? 0 : template.getLastRowNum() + 1;
+        }
+        Row row = sheet.createRow(next);
+        nextRows.put(sheet, next + 1);
+        return row;
+    }
+
+    /**
+     * 次の行を作成し、値を左端の列から順に設定
+     *
+     * 値はString・Number・Boolean・Date・LocalDate・LocalDateTimeに対応(nullは空セル、それ以外は文字列化)
+     */
+    public Row writeRow(Sheet sheet, Object... values) {
+        Row row = createRow(sheet);
+        for (int i = 0; i < values.length; i++) {
+            setCellValue(row.createCell(i), values[i]);
+        }
+        return row;
+    }
+
+    // 値の型に応じてセルに設定
+    private void setCellValue(Cell cell, Object value) {
+        if (value == null) {
+            cell.setBlank();
+        } else if (value instanceof String) {
+            cell.setCellValue((String) value);
+        } else if (value instanceof Number) {
+            cell.setCellValue(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            cell.setCellValue((Boolean) value);
+        } else if (value instanceof LocalDateTime) {
+            cell.setCellValue((LocalDateTime) value);
+            applyStyle(cell, DATE_TIME_FORMAT);
+        } else if (value instanceof LocalDate) {
+            cell.setCellValue((LocalDate) value);
+            applyStyle(cell, DATE_FORMAT);
+        } else if (value instanceof Date) {
+            cell.setCellValue((Date) value);
+            applyStyle(cell, DATE_TIME_FORMAT);
+        } else {
+            cell.setCellValue(value.toString());
+        }
+    }
+
+    /**
+     * 行の指定範囲のセルに、格子状の罫線を引く
+     *
+     * 範囲の全ての行で呼べば、PoiUtil.setGridLinesと同じ結果になる
+     */
+    public void setGridLines(Row row, int firstCol, int lastCol) {
+        applyStyle(row, firstCol, lastCol, PoiStyleSpec.GRID_LINES);
+    }
+
+    /**
+     * 行の指定範囲のセルに背景色とフォント色を設定
+     *
+     * @param bgColor 背景色(IndexedColors または XSSFColor)
+     * @param fontColor フォント色(IndexedColors)
+     */
+    public void setCellBackgroundAndFontColor(Row row, int firstCol, int lastCol, Object bgColor, Object fontColor) {
+        applyStyle(row, firstCol, lastCol, PoiStyleSpec.create().fill(bgColor).fontColor(fontColor));
+    }
+
+    /**
+     * 行の指定範囲のセル書式を文字列にする
+     */
+    public void setCellFormatAsText(Row row, int firstCol, int lastCol) {
+        applyStyle(row, firstCol, lastCol, PoiStyleSpec.TEXT_FORMAT);
+    }
+
+    /**
+     * セルに取り消し線を付ける
+     */
+    public void addStrikethroughToCell(Cell cell) {
+        if (cell == null) return;
+        applyStyle(cell, PoiStyleSpec.STRIKEOUT);
+    }
+
+    /**
+     * 行の指定範囲のセルに書式を設定(無いセルは作成)
+     */
+    public void applyStyle(Row row, int firstCol, int lastCol, PoiStyleSpec spec) {
+        for (int col = firstCol; col <= lastCol; col++) {
+            Cell cell = row.getCell(col);
+            if (cell == null) {
+                cell = row.createCell(col);
+            }
+            applyStyle(cell, spec);
+        }
+    }
+
+    /**
+     * セルに書式を設定
+     */
+    public void applyStyle(Cell cell, PoiStyleSpec spec) {
+        cell.setCellStyle(registry.derive(cell.getCellStyle(), spec));
+    }
+
+    /**
+     * 列幅を自動調整する為に、以降に出力する行の文字幅を記録する(autoSizeColumnの前に呼ぶ事)
+     */
+    public void trackAllColumnsForAutoSizing(Sheet sheet) {
+        ((SXSSFSheet) sheet).trackAllColumnsForAutoSizing();
+    }
+
+    /**
+     * ストリームに出力する(ストリームは閉じない)
+     */
+    public void write(OutputStream out) throws IOException {
+        workbook.write(out);
+        out.flush();
+    }
+
+    /**
+     * HTTPレスポンスにダウンロードファイルとして出力する
+     *
+     * @param res HttpServletResponse
+     * @param fileName ファイル名(日本語可)
+     */
+    public void write(HttpServletResponse res, String fileName) throws IOException {
+        // 日本語のファイル名はRFC 5987形式で指定する
+        String encoded = URLEncoder.encode(fileName, StandardCharsets.UTF_8).replace("+", "%20");
+        res.setContentType(CONTENT_TYPE);
+        res.setHeader("Content-Disposition", "attachment; filename*=UTF-8''" + encoded);
+        write(res.getOutputStream());
+    }
+
+    /**
+     * 一時ファイルを削除してワークブックを閉じる
+     */
+    @Override
+    public void close() throws IOException {
+        PoiWorkbookContext.release(workbook);
+        try {
+            workbook.dispose();
+        } finally {
+            workbook.close();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.hssf.usermodel.HSSFOptimiser;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCol;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCols;
+
+import lombok.Getter;
+
+/**
+ * ワークブックのセルスタイルの使用状況を分析し、重複したスタイルを整理する
+ *
+ * PoiUtil.printCellStyleCountは1シートのスタイル数を標準出力に出すだけだったが、
+ * こちらはワークブック全体のスタイル数・フォント数をシート毎に集計し、値が同じスタイル(重複)をまとめた結果を返す。
+ * compactは、セル・行・列のスタイルを重複の中で番号が最も小さいスタイルに付け替える。
+ * 重複の判定はPoiStyleRegistry.keyOfの値(表示形式・フォント・配置・保護・罫線と斜線の種類と色・塗りつぶし・親スタイル)が全て一致する場合だけとし、
+ * 色はXSSFのRGB・テーマの色も区別するので、見た目が異なるスタイルがまとめられる事は無い。
+ * (PoiStyleRegistryも同じスタイルを優先して使うので、以降の書式設定でも重複は増えない)
+ *
+ * 付け替え後に使われなくなったスタイルの削除は、xls(HSSF)の場合だけ行う。
+ * xlsx(XSSF)はスタイルの番号が条件付き書式等からも参照され得るため、POIでは安全に削除できない。
+ * その場合もセルからは参照されなくなるので、スタイル数の上限に近づく事は無くなる。
+ *
+ * 使用例 ↓
+ *
+ * PoiStyleAnalyzer.Report report = PoiStyleAnalyzer.compact(workbook); // 保存前に実行
+ * Kai9Utils.makeLog("info", report.toString(), this.getClass());
+ */
+public class PoiStyleAnalyzer {
+
+    /**
+     * シート毎の集計
+     */
+    @Getter
+    public static final class SheetReport {
+        private final String sheetName;
+        // セル数
+        private final int cellCount;
+        // 使われているスタイル数(セル・行・列)
+        private final int usedStyleCount;
+        // 使われているスタイルの内、値が異なるものの数
+        private final int distinctStyleCount;
+        // 使われているフォント数
+        private final int usedFontCount;
+
+        SheetReport(String sheetName, int cellCount, int usedStyleCount, int distinctStyleCount, int usedFontCount) {
+            this.sheetName = sheetName;
+            this.cellCount = cellCount;
+            this.usedStyleCount = usedStyleCount;
+            this.distinctStyleCount = distinctStyleCount;
+            this.usedFontCount = usedFontCount;
+        }
+
+        @Override
+        public String toString() {
+            return sheetName + " : セル=" + cellCount + " スタイル=" + usedStyleCount + "(値が異なるもの=" + distinctStyleCount + ") フォント=" + usedFontCount;
+        }
+    }
+
+    /**
+     * ワークブック全体の集計
+     */
+    @Getter
+    public static final class Report {
+        // ワークブック内のスタイル数
+        private final int styleCount;
+        // ワークブック内のフォント数
+        private final int fontCount;
+        // いずれかのシートで使われているスタイル数
+        private final int usedStyleCount;
+        // 値が異なるスタイルの数
+        private final int distinctStyleCount;
+        // 値が同じスタイルの番号のまとまり(先頭が付け替え先)
+        private final List<List<Integer>> duplicateGroups;
+        private final List<SheetReport> sheets;
+        // compactで付け替えたセル数
+        private int remappedCells;
+        // compactで付け替えた行・列の数
+        private int remappedRowsAndColumns;
+        // compactで削除したスタイル数(HSSFのみ)
+        private int removedStyles;
+        // compactで削除したフォント数(HSSFのみ)
+        private int removedFonts;
+
+        Report(int styleCount, int fontCount, int usedStyleCount, int distinctStyleCount, List<List<Integer>> duplicateGroups, List<SheetReport> sheets) {
+            this.styleCount = styleCount;
+            this.fontCount = fontCount;
+            this.usedStyleCount = usedStyleCount;
+            this.distinctStyleCount = distinctStyleCount;
+            this.duplicateGroups = Collections.unmodifiableList(duplicateGroups);
+            this.sheets = Collections.unmodifiableList(sheets);
+        }
+
+        /**
+         * 使われていないスタイル数を返す
+         */
+        public int getUnusedStyleCount() {
+            return styleCount - usedStyleCount;
+        }
+
+        /**
+         * 重複しているスタイル数を返す(付け替えで不要になる数)
+         */
+        public int getDuplicateStyleCount() {
+            return styleCount - distinctStyleCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("スタイル=").append(styleCount)
+                    .append(" (使用中=").append(usedStyleCount)
+                    .append(" 値が異なるもの=").append(distinctStyleCount)
+                    .append(" 重複=").append(getDuplicateStyleCount())
+                    .append(") フォント=").append(fontCount);
+            if (remappedCells > 0 || remappedRowsAndColumns > 0 || removedStyles > 0 || removedFonts > 0) {
+                sb.append(" 付け替えたセル=").append(remappedCells)
+                        .append(" 付け替えた行・列=").append(remappedRowsAndColumns)
+                        .append(" 削除したスタイル=").append(removedStyles)
+                        .append(" 削除したフォント=").append(removedFonts);
+            }
+            for (SheetReport sheet : sheets) {
+                sb.append(System.lineSeparator()).append("  ").append(sheet);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * ワークブックのスタイルの使用状況を集計する(ワークブックは変更しない)
+     */
+    public static Report analyze(Workbook workbook) {
+        return analyze(workbook, canonicalStyles(workbook));
+    }
+
+    /**
+     * 値が同じスタイルを1つに付け替え、使われなくなったスタイルを削除する(HSSFのみ)
+     *
+     * @return 整理後の集計(付け替え・削除した数を含む)
+     */
+    public static Report compact(Workbook workbook) {
+        int styleCountBefore = workbook.getNumCellStyles();
+        int fontCountBefore = workbook.getNumberOfFonts();
+        int[] canonical = canonicalStyles(workbook);
+
+        // 付け替え先のスタイル
+        CellStyle[] targets = new CellStyle[canonical.length];
+        for (int i = 0; i < canonical.length; i++) {
+            if (canonical[i] != i) {
+                targets[i] = workbook.getCellStyleAt(canonical[i]);
+            }
+        }
+
+        int remappedCells = 0;
+        int remappedRowsAndColumns = 0;
+        for (Sheet sheet : workbook) {
+            for (Row row : sheet) {
+                CellStyle rowStyle = row.getRowStyle();
+                if (rowStyle != null) {
+                    CellStyle target = targets[styleIndex(rowStyle)];
+                    if (target != null) {
+                        row.setRowStyle(target);
+                        remappedRowsAndColumns++;
+                    }
+                }
+                for (Cell cell : row) {
+                    CellStyle target = targets[styleIndex(cell.getCellStyle())];
+                    if (target != null) {
+                        cell.setCellStyle(target);
+                        remappedCells++;
+                    }
+                }
+            }
+            remappedRowsAndColumns += remapColumnStyles(sheet, canonical);
+        }
+
+        if (workbook instanceof HSSFWorkbook) {
+            // HSSFは使われていないフォントとスタイルを削除できる(番号が詰められる)
+            HSSFOptimiser.optimiseFonts((HSSFWorkbook) workbook);
+            HSSFOptimiser.optimiseCellStyles((HSSFWorkbook) workbook);
+            canonical = canonicalStyles(workbook);
+        }
+        // 番号が変わった、または付け替えたので登録簿を作り直させる
+        PoiWorkbookContext.invalidateStyles(workbook);
+
+        Report report = analyze(workbook, canonical);
+        report.remappedCells = remappedCells;
+        report.remappedRowsAndColumns = remappedRowsAndColumns;
+        report.removedStyles = styleCountBefore - workbook.getNumCellStyles();
+        report.removedFonts = fontCountBefore - workbook.getNumberOfFonts();
+        return report;
+    }
+
+    // 集計本体
+    private static Report analyze(Workbook workbook, int[] canonical) {
+        // 値が同じスタイルのまとまり
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        int distinct = 0;
+        for (int i = 0; i < canonical.length; i++) {
+            if (canonical[i] == i) {
+                distinct++;
+            } else {
+                List<Integer> group = groups.get(canonical[i]);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    group.add(canonical[i]);
+                    groups.put(canonical[i], group);
+                }
+                group.add(i);
+            }
+        }
+
+        BitSet usedInWorkbook = new BitSet(canonical.length);
+        List<SheetReport> sheets = new ArrayList<>();
+        for (Sheet sheet : workbook) {
+            BitSet used = new BitSet(canonical.length);
+            int cellCount = 0;
+            for (Row row : sheet) {
+                CellStyle rowStyle = row.getRowStyle();
+                if (rowStyle != null) {
+                    used.set(styleIndex(rowStyle));
+                }
+                for (Cell cell : row) {
+                    used.set(styleIndex(cell.getCellStyle()));
+                    cellCount++;
+                }
+            }
+            for (int index : columnStyleIndexes(sheet)) {
+                if (index < canonical.length) used.set(index);
+            }
+
+            BitSet distinctUsed = new BitSet(canonical.length);
+            BitSet fonts = new BitSet();
+            for (int i = used.nextSetBit(0); i >= 0; i = used.nextSetBit(i + 1)) {
+                distinctUsed.set(canonical[i]);
+                fonts.set(workbook.getCellStyleAt(i).getFontIndex());
+            }
+            usedInWorkbook.or(used);
+            sheets.add(new SheetReport(sheet.getSheetName(), cellCount, used.cardinality(), distinctUsed.cardinality(), fonts.cardinality()));
+        }
+
+        return new Report(canonical.length, workbook.getNumberOfFonts(), usedInWorkbook.cardinality(), distinct,
+                new ArrayList<>(groups.values()), sheets);
+    }
+
+    // スタイル番号 → 値(PoiStyleRegistry.keyOf)が同じスタイルの中で最も小さい番号
+    private static int[] canonicalStyles(Workbook workbook) {
+        int count = workbook.getNumCellStyles();
+        int[] canonical = new int[count];
+        Map<List<Object>, Integer> first = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Integer found = first.putIfAbsent(PoiStyleRegistry.keyOf(workbook, workbook.getCellStyleAt(i)), i);
+            canonical[i] = (found == null) ? i : found;
+        }
+        return canonical;
+    }
+
+    // 列に設定されているスタイルの番号
+    private static List<Integer> columnStyleIndexes(Sheet sheet) {
+        List<Integer> indexes = new ArrayList<>();
+        if (sheet instanceof XSSFSheet) {
+            for (CTCols cols : ((XSSFSheet) sheet).getCTWorksheet().getColsArray()) {
+                for (CTCol col : cols.getColArray()) {
+                    if (col.isSetStyle()) {
+                        indexes.add((int) col.getStyle());
+                    }
+                }
+            }
+        } else {
+            int lastColumn = sheet.getWorkbook().getSpreadsheetVersion().getLastColumnIndex();
+            for (int col = 0; col <= lastColumn; col++) {
+                CellStyle style = sheet.getColumnStyle(col);
+                if (style != null) {
+                    indexes.add(styleIndex(style));
+                }
+            }
+        }
+        return indexes;
+    }
+
+    // 列に設定されているスタイルを付け替え、付け替えた列の数を返す
+    private static int remapColumnStyles(Sheet sheet, int[] canonical) {
+        int remapped = 0;
+        if (sheet instanceof XSSFSheet) {
+            for (CTCols cols : ((XSSFSheet) sheet).getCTWorksheet().getColsArray()) {
+                for (CTCol col : cols.getColArray()) {
+                    if (col.isSetStyle()) {
+                        int index = (int) col.getStyle();
+                        if (index < canonical.length && canonical[index] != index) {
+                            col.setStyle(canonical[index]);
+                            remapped++;
+                        }
+                    }
+                }
+            }
+        } else {
+            Workbook workbook = sheet.getWorkbook();
+            int lastColumn = workbook.getSpreadsheetVersion().getLastColumnIndex();
+            for (int col = 0; col <= lastColumn; col++) {
+                CellStyle style = sheet.getColumnStyle(col);
+                if (style == null) continue;
+                int index = styleIndex(style);
+                if (canonical[index] != index) {
+                    sheet.setDefaultColumnStyle(col, workbook.getCellStyleAt(canonical[index]));
+                    remapped++;
+                }
+            }
+        }
+        return remapped;
+    }
+
+    // スタイル番号(32767を超える番号はshortでは負になるので符号無しで扱う)
+    private static int styleIndex(CellStyle style) {
+        return Short.toUnsignedInt(style.getIndex());
+    }
+}
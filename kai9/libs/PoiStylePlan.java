@@ -0,0 +1,144 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * 範囲毎の書式設定をまとめて1回で適用する
+ *
+ * 同じ範囲に罫線・背景色・文字列書式をPoiUtilのメソッドで順に設定すると、
+ * セル毎にスタイルの検索と作成がメソッドの数だけ繰り返され、途中段階のスタイルも作られてしまう。
+ * こちらは範囲と変更内容を溜めておき、applyでセル毎に変更内容を合成してからスタイルを1回だけ求める。
+ *
+ * 後から追加した変更内容が優先される(同じ項目を複数回指定した場合)。
+ *
+ * 使用例 ↓
+ *
+ * CellRangeAddress header = new CellRangeAddress(0, 0, 0, 7);
+ * CellRangeAddress body = new CellRangeAddress(0, 100, 0, 7);
+ * new PoiStylePlan()
+ *         .gridLines(body)
+ *         .colors(header, IndexedColors.LIGHT_GREEN, IndexedColors.WHITE)
+ *         .textFormat(new CellRangeAddress(1, 100, 2, 2))
+ *         .apply(sheet);
+ */
+public class PoiStylePlan {
+
+    private final List<CellRangeAddress> ranges = new ArrayList<>();
+    private final List<PoiStyleSpec> specs = new ArrayList<>();
+
+    /**
+     * 範囲に変更内容を追加
+     */
+    public PoiStylePlan add(CellRangeAddress range, PoiStyleSpec spec) {
+        ranges.add(range);
+        specs.add(spec);
+        return this;
+    }
+
+    /**
+     * 範囲に格子状の罫線を追加(PoiUtil.setGridLinesと同じ)
+     */
+    public PoiStylePlan gridLines(CellRangeAddress range) {
+        return add(range, PoiStyleSpec.GRID_LINES);
+    }
+
+    /**
+     * 範囲に背景色とフォント色を追加(PoiUtil.setCellBackgroundAndFontColor_voidと同じ)
+     *
+     * @param bgColor 背景色(IndexedColors または XSSFColor)
+     * @param fontColor フォント色(IndexedColors)
+     */
+    public PoiStylePlan colors(CellRangeAddress range, Object bgColor, Object fontColor) {
+        return add(range, PoiStyleSpec.create().fill(bgColor).fontColor(fontColor));
+    }
+
+    /**
+     * 範囲に文字列書式を追加(PoiUtil.setCellFormatAsTextと同じ)
+     */
+    public PoiStylePlan textFormat(CellRangeAddress range) {
+        return add(range, PoiStyleSpec.TEXT_FORMAT);
+    }
+
+    /**
+     * 範囲に取り消し線を追加
+     */
+    public PoiStylePlan strikethrough(CellRangeAddress range) {
+        return add(range, PoiStyleSpec.STRIKEOUT);
+    }
+
+    /**
+     * シートに適用する(範囲内に無いセルは作成する)
+     */
+    public void apply(Sheet sheet) {
+        if (ranges.isEmpty()) return;
+        PoiStyleRegistry registry = PoiStyleRegistry.of(sheet.getWorkbook());
+
+        // 全ての範囲を囲む矩形
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = -1;
+        for (CellRangeAddress range : ranges) {
+            firstRow = Math.min(firstRow, range.getFirstRow());
+            lastRow = Math.max(lastRow, range.getLastRow());
+        }
+
+        // 重なっている範囲の組合せ → 合成した変更内容
+        Map<BitSet, PoiStyleSpec> combined = new HashMap<>();
+        List<Integer> rowEntries = new ArrayList<>();
+        BitSet covering = new BitSet(ranges.size());
+
+        for (int rowIndex = firstRow; rowIndex <= lastRow; rowIndex++) {
+            // この行に掛かる範囲と列の幅
+            rowEntries.clear();
+            int firstCol = Integer.MAX_VALUE;
+            int lastCol = -1;
+            for (int i = 0; i < ranges.size(); i++) {
+                CellRangeAddress range = ranges.get(i);
+                if (range.getFirstRow() <= rowIndex && rowIndex <= range.getLastRow()) {
+                    rowEntries.add(i);
+                    firstCol = Math.min(firstCol, range.getFirstColumn());
+                    lastCol = Math.max(lastCol, range.getLastColumn());
+                }
+            }
+            if (rowEntries.isEmpty()) continue;
+
+            Row row = sheet.getRow(rowIndex);
+            if (row == null) {
+                row = sheet.createRow(rowIndex);
+            }
+            for (int colIndex = firstCol; colIndex <= lastCol; colIndex++) {
+                covering.clear();
+                for (int i : rowEntries) {
+                    CellRangeAddress range = ranges.get(i);
+                    if (range.getFirstColumn() <= colIndex && colIndex <= range.getLastColumn()) {
+                        covering.set(i);
+                    }
+                }
+                if (covering.isEmpty()) continue;
+
+                PoiStyleSpec spec = combined.get(covering);
+                if (spec == null) {
+                    spec = PoiStyleSpec.create();
+                    for (int i = covering.nextSetBit(0); i >= 0; i = covering.nextSetBit(i + 1)) {
+                        spec = spec.merge(specs.get(i));
+                    }
+                    combined.put((BitSet) covering.clone(), spec);
+                }
+
+                Cell cell = row.getCell(colIndex);
+                if (cell == null) {
+                    cell = row.createCell(colIndex);
+                }
+                cell.setCellStyle(registry.derive(cell.getCellStyle(), spec));
+            }
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package kai9.libs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.hssf.usermodel.HSSFCellStyle;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Color;
+import org.apache.poi.ss.usermodel.DataFormat;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTBorder;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTBorderPr;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTFill;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
+
+/**
+ * ワークブック単位のセルスタイル登録簿
+ *
+ * PoiUtilの書式設定系メソッドは、呼出毎に「元スタイル → 新スタイル」のキャッシュを作っていたため、
+ * 同じ書式を何度設定してもその都度スタイルとフォントが増え、Excelのスタイル数上限(64000)やファイル肥大の原因になっていた。
+ * こちらはスタイルとフォントを値(表示形式・フォント・配置・罫線と斜線(色を含む)・塗りつぶし(グラデーションを含む)・親スタイル)で登録し、
+ * 同じ値のスタイルはワークブック内で1つだけ作成する。
+ *
+ * 作成時にワークブック内の既存スタイルも登録するので、テンプレートに既に有る書式はそのまま流用される。
+ * PoiWorkbookContext経由でワークブック毎に1つだけ作られる。
+ * 返されたスタイルは複数のセルで共有されるので、setBorderTop等で直接変更しない事(変更はPoiStyleSpecで行う)。
+ *
+ * 使用例 ↓
+ *
+ * PoiStyleRegistry registry = PoiStyleRegistry.of(workbook);
+ * cell.setCellStyle(registry.derive(cell.getCellStyle(), PoiStyleSpec.create().strikeout(true)));
+ */
+public class PoiStyleRegistry {
+
+    // スタイルの値の並び
+    private static final int DATA_FORMAT = 0;
+    private static final int FONT = 1;
+    private static final int ALIGNMENT = 2;
+    private static final int VERTICAL_ALIGNMENT = 3;
+    private static final int WRAP_TEXT = 4;
+    private static final int ROTATION = 5;
+    private static final int INDENTION = 6;
+    private static final int SHRINK_TO_FIT = 7;
+    private static final int LOCKED = 8;
+    private static final int HIDDEN = 9;
+    private static final int QUOTE_PREFIXED = 10;
+    private static final int BORDER_TOP = 11;
+    private static final int BORDER_BOTTOM = 12;
+    private static final int BORDER_LEFT = 13;
+    private static final int BORDER_RIGHT = 14;
+    private static final int TOP_BORDER_COLOR = 15;
+    private static final int BOTTOM_BORDER_COLOR = 16;
+    private static final int LEFT_BORDER_COLOR = 17;
+    private static final int RIGHT_BORDER_COLOR = 18;
+    private static final int FILL_PATTERN = 19;
+    private static final int FILL_FOREGROUND = 20;
+    private static final int FILL_BACKGROUND = 21;
+    private static final int DIAGONAL = 22;
+    private static final int PARENT_STYLE = 23;
+    private static final int FILL_GRADIENT = 24;
+    private static final int STYLE_VALUES = 25;
+
+    // フォントの値の並び
+    private static final int FONT_NAME = 0;
+    private static final int FONT_HEIGHT = 1;
+    private static final int FONT_BOLD = 2;
+    private static final int FONT_ITALIC = 3;
+    private static final int FONT_STRIKEOUT = 4;
+    private static final int FONT_UNDERLINE = 5;
+    private static final int FONT_TYPE_OFFSET = 6;
+    private static final int FONT_CHARSET = 7;
+    private static final int FONT_COLOR = 8;
+    private static final int FONT_FAMILY = 9;
+    private static final int FONT_SCHEME = 10;
+    private static final int FONT_VALUES = 11;
+
+    private final Workbook workbook;
+    private DataFormat dataFormat;
+    // 新しく作成したフォントの値(フォントを置き換える場合に使用)
+    private List<Object> newFontKey;
+
+    // スタイルの値 → スタイル
+    private final Map<List<Object>, CellStyle> styles = new HashMap<>();
+    // フォントの値 → フォント
+    private final Map<List<Object>, Font> fonts = new HashMap<>();
+    // 変更内容 → (元スタイルの番号 → 適用後のスタイル)
+    private final Map<PoiStyleSpec, Map<Integer, CellStyle>> derived = new HashMap<>();
+
+    PoiStyleRegistry(Workbook workbook) {
+        this.workbook = workbook;
+
+        // 既存のスタイルを登録(同じ値のスタイルが複数有る場合は番号が小さい方を使う)
+        int count = workbook.getNumCellStyles();
+        for (int i = 0; i < count; i++) {
+            CellStyle style = workbook.getCellStyleAt(i);
+            if (style == null) continue;
+            Font font = workbook.getFontAt(style.getFontIndex());
+            List<Object> fontKey = fontKeyOf(font);
+            fonts.putIfAbsent(fontKey, font);
+            styles.putIfAbsent(Arrays.asList(styleValuesOf(workbook, style, fontKey)), style);
+        }
+    }
+
+    /**
+     * ワークブックの登録簿を返す
+     */
+    public static PoiStyleRegistry of(Workbook workbook) {
+        return PoiWorkbookContext.of(workbook).getStyleRegistry();
+    }
+
+    /**
+     * 元のスタイルに変更内容を適用したスタイルを返す
+     *
+     * 同じ値のスタイルが既に有ればそれを返し、無い場合だけ新しく作成する。
+     *
+     * @param base 元のスタイル(nullの場合は既定のスタイル)
+     * @param spec 変更内容
+     * @return 適用後のスタイル
+     */
+    public synchronized CellStyle derive(CellStyle base, PoiStyleSpec spec) {
+        if (base == null) base = workbook.getCellStyleAt(0);
+
+        // 同じ組合せは前回の結果を返す
+        Map<Integer, CellStyle> byBase = derived.get(spec);
+        if (byBase == null) {
+            byBase = new HashMap<>();
+            derived.put(spec, byBase);
+        }
+        Integer baseIndex = (int) base.getIndex();
+        CellStyle result = byBase.get(baseIndex);
+        if (result != null) return result;
+
+        // 適用後の値を求めて、同じ値のスタイルを探す
+        Font baseFont = workbook.getFontAt(base.getFontIndex());
+        List<Object> baseFontKey = fontKeyOf(baseFont);
+        // フォントを置き換える場合は、元のフォントの値を引き継がない
+        Object[] fontValues = (spec.isReplaceFont() ? getNewFontKey() : baseFontKey).toArray();
+        applyFont(fontValues, spec);
+        List<Object> fontKey = Arrays.asList(fontValues);
+
+        Object[] values = styleValuesOf(workbook, base, baseFontKey);
+        values[FONT] = fontKey;
+        applyStyle(values, spec);
+        List<Object> styleKey = Arrays.asList(values);
+
+        result = styles.get(styleKey);
+        if (result == null) {
+            result = workbook.createCellStyle();
+            result.cloneStyleFrom(base);
+            applyStyle(result, spec);
+            if (!fontKey.equals(baseFontKey)) {
+                result.setFont(getFont(baseFont, fontKey, spec));
+            }
+            styles.put(styleKey, result);
+        }
+        byBase.put(baseIndex, result);
+        return result;
+    }
+
+    /**
+     * 登録済のスタイル数を返す
+     */
+    public synchronized int getStyleCount() {
+        return styles.size();
+    }
+
+    /**
+     * 登録済のフォント数を返す
+     */
+    public synchronized int getFontCount() {
+        return fonts.size();
+    }
+
+    // 同じ値のフォントを返す(無ければ作成)
+    private Font getFont(Font baseFont, List<Object> fontKey, PoiStyleSpec spec) {
+        Font font = fonts.get(fontKey);
+        if (font != null) return font;
+
+        font = workbook.createFont();
+        if (!spec.isReplaceFont()) {
+            copyFont(baseFont, font);
+        }
+
+        if (spec.getFontName() != null) font.setFontName(spec.getFontName());
+        if (spec.getFontHeightInPoints() != null) font.setFontHeightInPoints(spec.getFontHeightInPoints());
+        if (spec.getStrikeout() != null) font.setStrikeout(spec.getStrikeout());
+        if (spec.getFontColor() != null) font.setColor(spec.getFontColor().getIndex());
+
+        fonts.put(fontKey, font);
+        return font;
+    }
+
+    // フォントの値を複製
+    private static void copyFont(Font baseFont, Font font) {
+        font.setFontName(baseFont.getFontName());
+        font.setFontHeight(baseFont.getFontHeight());
+        font.setBold(baseFont.getBold());
+        font.setItalic(baseFont.getItalic());
+        font.setStrikeout(baseFont.getStrikeout());
+        font.setUnderline(baseFont.getUnderline());
+        font.setTypeOffset(baseFont.getTypeOffset());
+        font.setCharSet(baseFont.getCharSet());
+        XSSFColor baseColor = (baseFont instanceof XSSFFont) ? ((XSSFFont) baseFont).getXSSFColor() : null;
+        if (baseColor != null) {
+            ((XSSFFont) font).setColor(baseColor);
+        } else {
+            font.setColor(baseFont.getColor());
+        }
+        if (baseFont instanceof XSSFFont && font instanceof XSSFFont) {
+            XSSFFont xssfBase = (XSSFFont) baseFont;
+            XSSFFont xssfFont = (XSSFFont) font;
+            xssfFont.setFamily(xssfBase.getFamily());
+            xssfFont.setScheme(xssfBase.getScheme());
+        }
+    }
+
+    // 新しく作成したフォントの値(ワークブックには追加せずに求める)
+    private List<Object> getNewFontKey() {
+        if (newFontKey == null) {
+            if (workbook instanceof XSSFWorkbook || workbook instanceof SXSSFWorkbook) {
+                newFontKey = fontKeyOf(new XSSFFont());
+            } else {
+                Object[] values = new Object[FONT_VALUES];
+                values[FONT_NAME] = "Arial";
+                values[FONT_HEIGHT] = (short) 200;
+                values[FONT_BOLD] = false;
+                values[FONT_ITALIC] = false;
+                values[FONT_STRIKEOUT] = false;
+                values[FONT_UNDERLINE] = Font.U_NONE;
+                values[FONT_TYPE_OFFSET] = Font.SS_NONE;
+                values[FONT_CHARSET] = 0;
+                values[FONT_COLOR] = indexedColorKey(Font.COLOR_NORMAL);
+                newFontKey = Arrays.asList(values);
+            }
+        }
+        return newFontKey;
+    }
+
+    // 変更内容をスタイルに設定
+    private void applyStyle(CellStyle style, PoiStyleSpec spec) {
+        if (spec.getBorderTop() != null) style.setBorderTop(spec.getBorderTop());
+        if (spec.getBorderBottom() != null) style.setBorderBottom(spec.getBorderBottom());
+        if (spec.getBorderLeft() != null) style.setBorderLeft(spec.getBorderLeft());
+        if (spec.getBorderRight() != null) style.setBorderRight(spec.getBorderRight());
+        Object fillColor = spec.getFillColor();
+        if (fillColor instanceof IndexedColors) {
+            style.setFillForegroundColor(((IndexedColors) fillColor).getIndex());
+        } else if (fillColor instanceof XSSFColor) {
+            style.setFillForegroundColor((XSSFColor) fillColor);
+        }
+        if (spec.getFillPattern() != null) style.setFillPattern(spec.getFillPattern());
+        if (spec.getDataFormat() != null) style.setDataFormat(getDataFormat().getFormat(spec.getDataFormat()));
+    }
+
+    // 変更内容をスタイルの値に反映(applyStyleと同じ結果になる様に)
+    private void applyStyle(Object[] values, PoiStyleSpec spec) {
+        if (spec.getBorderTop() != null) values[BORDER_TOP] = spec.getBorderTop();
+        if (spec.getBorderBottom() != null) values[BORDER_BOTTOM] = spec.getBorderBottom();
+        if (spec.getBorderLeft() != null) values[BORDER_LEFT] = spec.getBorderLeft();
+        if (spec.getBorderRight() != null) values[BORDER_RIGHT] = spec.getBorderRight();
+        Object fillColor = spec.getFillColor();
+        if (fillColor instanceof IndexedColors) {
+            values[FILL_FOREGROUND] = indexedColorKey(((IndexedColors) fillColor).getIndex());
+        } else if (fillColor instanceof XSSFColor) {
+            values[FILL_FOREGROUND] = colorKeyOf((XSSFColor) fillColor, (short) 0);
+        }
+        if (spec.getFillPattern() != null) values[FILL_PATTERN] = spec.getFillPattern();
+        if (spec.getDataFormat() != null) values[DATA_FORMAT] = getDataFormat().getFormat(spec.getDataFormat());
+    }
+
+    // 変更内容をフォントの値に反映
+    private static void applyFont(Object[] values, PoiStyleSpec spec) {
+        if (spec.getFontName() != null) values[FONT_NAME] = spec.getFontName();
+        if (spec.getFontHeightInPoints() != null) values[FONT_HEIGHT] = (short) (spec.getFontHeightInPoints() * 20);
+        if (spec.getStrikeout() != null) values[FONT_STRIKEOUT] = spec.getStrikeout();
+        if (spec.getFontColor() != null) values[FONT_COLOR] = indexedColorKey(spec.getFontColor().getIndex());
+    }
+
+    private DataFormat getDataFormat() {
+        if (dataFormat == null) {
+            dataFormat = workbook.createDataFormat();
+        }
+        return dataFormat;
+    }
+
+    // スタイルの値を返す(PoiStyleAnalyzerで同じ値のスタイルを探す為に使用)
+    static List<Object> keyOf(Workbook workbook, CellStyle style) {
+        Font font = workbook.getFontAt(style.getFontIndex());
+        return Arrays.asList(styleValuesOf(workbook, style, fontKeyOf(font)));
+    }
+
+    // スタイルの値を取り出す
+    private static Object[] styleValuesOf(Workbook workbook, CellStyle style, List<Object> fontKey) {
+        Object[] values = new Object[STYLE_VALUES];
+        values[DATA_FORMAT] = style.getDataFormat();
+        values[FONT] = fontKey;
+        values[ALIGNMENT] = style.getAlignment();
+        values[VERTICAL_ALIGNMENT] = style.getVerticalAlignment();
+        values[WRAP_TEXT] = style.getWrapText();
+        values[ROTATION] = style.getRotation();
+        values[INDENTION] = style.getIndention();
+        values[SHRINK_TO_FIT] = style.getShrinkToFit();
+        values[LOCKED] = style.getLocked();
+        values[HIDDEN] = style.getHidden();
+        values[QUOTE_PREFIXED] = style.getQuotePrefixed();
+        values[BORDER_TOP] = style.getBorderTop();
+        values[BORDER_BOTTOM] = style.getBorderBottom();
+        values[BORDER_LEFT] = style.getBorderLeft();
+        values[BORDER_RIGHT] = style.getBorderRight();
+        // XSSFのgetTopBorderColor等はRGB・テーマの色で0を返すので、XSSFColorで比較する
+        XSSFCellStyle xssfStyle = (style instanceof XSSFCellStyle) ? (XSSFCellStyle) style : null;
+        values[TOP_BORDER_COLOR] = colorKeyOf(xssfStyle == null ? null : xssfStyle.getTopBorderXSSFColor(), style.getTopBorderColor());
+        values[BOTTOM_BORDER_COLOR] = colorKeyOf(xssfStyle == null ? null : xssfStyle.getBottomBorderXSSFColor(), style.getBottomBorderColor());
+        values[LEFT_BORDER_COLOR] = colorKeyOf(xssfStyle == null ? null : xssfStyle.getLeftBorderXSSFColor(), style.getLeftBorderColor());
+        values[RIGHT_BORDER_COLOR] = colorKeyOf(xssfStyle == null ? null : xssfStyle.getRightBorderXSSFColor(), style.getRightBorderColor());
+        values[FILL_PATTERN] = style.getFillPattern();
+        values[FILL_FOREGROUND] = colorKeyOf(style.getFillForegroundColorColor(), style.getFillForegroundColor());
+        values[FILL_BACKGROUND] = colorKeyOf(style.getFillBackgroundColorColor(), style.getFillBackgroundColor());
+        if (xssfStyle != null) {
+            CTXf xf = xssfStyle.getCoreXf();
+            StylesTable stylesTable = stylesTableOf(workbook);
+            values[DIAGONAL] = diagonalKeyOf(stylesTable, xf);
+            values[PARENT_STYLE] = xf.isSetXfId() ? xf.getXfId() : null;
+            values[FILL_GRADIENT] = gradientKeyOf(stylesTable, xf);
+        } else if (style instanceof HSSFCellStyle) {
+            HSSFCellStyle parent = ((HSSFCellStyle) style).getParentStyle();
+            values[PARENT_STYLE] = (parent == null) ? null : parent.getIndex();
+        }
+        return values;
+    }
+
+    private static StylesTable stylesTableOf(Workbook workbook) {
+        return (workbook instanceof SXSSFWorkbook)
+                ? ((SXSSFWorkbook) workbook).getXSSFWorkbook().getStylesSource()
+                : ((XSSFWorkbook) workbook).getStylesSource();
+    }
+
+    // グラデーションの値(getFillForegroundColorColor等には現れないので、塗りつぶし定義のXMLで比較する。無い場合はnull)
+    // CTGradientFillはpoi-ooxml-liteに含まれないので、グラデーション部分だけを取り出さずに塗りつぶし全体のXMLを使う
+    private static Object gradientKeyOf(StylesTable stylesTable, CTXf xf) {
+        if (!xf.isSetFillId()) return null;
+        CTFill fill = stylesTable.getFillAt((int) xf.getFillId()).getCTFill();
+        return fill.isSetGradientFill() ? fill.xmlText() : null;
+    }
+
+    // 斜線の値(向き・線の種類・色。斜線が無い場合はnull)
+    private static Object diagonalKeyOf(StylesTable stylesTable, CTXf xf) {
+        if (!xf.isSetBorderId()) return null;
+        CTBorder border = stylesTable.getBorderAt((int) xf.getBorderId()).getCTBorder();
+        CTBorderPr diagonal = border.isSetDiagonal() ? border.getDiagonal() : null;
+        boolean up = border.isSetDiagonalUp() && border.getDiagonalUp();
+        boolean down = border.isSetDiagonalDown() && border.getDiagonalDown();
+        if (!up && !down && (diagonal == null || diagonal.getStyle() == null)) return null;
+        Object color = (diagonal != null && diagonal.isSetColor())
+                ? colorKeyOf(XSSFColor.from(diagonal.getColor(), stylesTable.getIndexedColors()), (short) 0)
+                : null;
+        return Arrays.asList(up, down, (diagonal == null) ? null : String.valueOf(diagonal.getStyle()), color);
+    }
+
+    // フォントの値を取り出す
+    private static List<Object> fontKeyOf(Font font) {
+        Object[] values = new Object[FONT_VALUES];
+        values[FONT_NAME] = font.getFontName();
+        values[FONT_HEIGHT] = font.getFontHeight();
+        values[FONT_BOLD] = font.getBold();
+        values[FONT_ITALIC] = font.getItalic();
+        values[FONT_STRIKEOUT] = font.getStrikeout();
+        values[FONT_UNDERLINE] = font.getUnderline();
+        values[FONT_TYPE_OFFSET] = font.getTypeOffset();
+        values[FONT_CHARSET] = font.getCharSet();
+        Color color = (font instanceof XSSFFont) ? ((XSSFFont) font).getXSSFColor() : null;
+        values[FONT_COLOR] = colorKeyOf(color, font.getColor());
+        if (font instanceof XSSFFont) {
+            values[FONT_FAMILY] = ((XSSFFont) font).getFamily();
+            values[FONT_SCHEME] = ((XSSFFont) font).getScheme();
+        }
+        return Arrays.asList(values);
+    }
+
+    // 色の値(XSSFはパレット番号・テーマ・RGBのいずれか、HSSFはパレット番号)
+    private static Object colorKeyOf(Color color, short index) {
+        if (color instanceof XSSFColor) {
+            XSSFColor xssfColor = (XSSFColor) color;
+            if (xssfColor.isIndexed()) {
+                return indexedColorKey(xssfColor.getIndex());
+            }
+            if (xssfColor.isThemed()) {
+                return Arrays.asList("theme", xssfColor.getTheme(), xssfColor.getTint());
+            }
+            return Arrays.asList("rgb", xssfColor.getARGBHex(), xssfColor.getTint(), xssfColor.isAuto());
+        }
+        return indexedColorKey(index);
+    }
+
+    private static Object indexedColorKey(short index) {
+        return Arrays.asList("indexed", index);
+    }
+}
@@ -0,0 +1,286 @@
+package kai9.libs;
+
+import java.util.Objects;
+
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+
+/**
+ * セルスタイルに加える変更内容
+ *
+ * 罫線・背景色・フォント・表示形式の変更をまとめて保持し、PoiStyleRegistry.deriveで既存スタイルに適用する。
+ * 値で比較できる不変オブジェクトなので、同じ変更内容は同じキーとして扱われる。
+ *
+ * 使用例 ↓
+ *
+ * PoiStyleSpec spec = PoiStyleSpec.create().borders(BorderStyle.THIN).fill(IndexedColors.LIGHT_GREEN);
+ * cell.setCellStyle(PoiStyleRegistry.of(workbook).derive(cell.getCellStyle(), spec));
+ */
+public final class PoiStyleSpec {
+
+    // よく使う変更内容
+    /** 表示形式を文字列("@")にする */
+    public static final PoiStyleSpec TEXT_FORMAT = create().dataFormat("@");
+    /** 上下左右に細い罫線を引く */
+    public static final PoiStyleSpec GRID_LINES = create().borders(BorderStyle.THIN);
+    /** 取り消し線を付ける */
+    public static final PoiStyleSpec STRIKEOUT = create().strikeout(true);
+
+    // 変更しない項目はnull
+    private BorderStyle borderTop;
+    private BorderStyle borderBottom;
+    private BorderStyle borderLeft;
+    private BorderStyle borderRight;
+    private Object fillColor; // IndexedColors または XSSFColor
+    private FillPatternType fillPattern;
+    private IndexedColors fontColor;
+    private String fontName;
+    private Short fontHeightInPoints;
+    private boolean replaceFont; // trueの場合、元のフォントの値(太字・斜体・色等)を引き継がない
+    private Boolean strikeout;
+    private String dataFormat;
+
+    private int hash;
+
+    private PoiStyleSpec() {
+    }
+
+    /**
+     * 何も変更しない状態で作成
+     */
+    public static PoiStyleSpec create() {
+        return new PoiStyleSpec();
+    }
+
+    // 不変にするため、変更は全て複製に対して行う
+    private PoiStyleSpec copy() {
+        PoiStyleSpec spec = new PoiStyleSpec();
+        spec.borderTop = borderTop;
+        spec.borderBottom = borderBottom;
+        spec.borderLeft = borderLeft;
+        spec.borderRight = borderRight;
+        spec.fillColor = fillColor;
+        spec.fillPattern = fillPattern;
+        spec.fontColor = fontColor;
+        spec.fontName = fontName;
+        spec.fontHeightInPoints = fontHeightInPoints;
+        spec.replaceFont = replaceFont;
+        spec.strikeout = strikeout;
+        spec.dataFormat = dataFormat;
+        return spec;
+    }
+
+    /**
+     * 上下左右の罫線を設定
+     */
+    public PoiStyleSpec borders(BorderStyle border) {
+        return borders(border, border, border, border);
+    }
+
+    /**
+     * 罫線を個別に設定(変更しない辺はnull)
+     */
+    public PoiStyleSpec borders(BorderStyle top, BorderStyle bottom, BorderStyle left, BorderStyle right) {
+        PoiStyleSpec spec = copy();
+        spec.borderTop = top;
+        spec.borderBottom = bottom;
+        spec.borderLeft = left;
+        spec.borderRight = right;
+        return spec;
+    }
+
+    /**
+     * 背景色を設定(塗りつぶしパターンは単色)
+     *
+     * @param color IndexedColors または XSSFColor(nullの場合は変更しない)
+     */
+    public PoiStyleSpec fill(Object color) {
+        if (color == null) return this;
+        if (!(color instanceof IndexedColors) && !(color instanceof XSSFColor)) {
+            throw new IllegalArgumentException("背景色にはIndexedColorsかXSSFColorを指定して下さい。: " + color);
+        }
+        PoiStyleSpec spec = copy();
+        spec.fillColor = color;
+        spec.fillPattern = FillPatternType.SOLID_FOREGROUND;
+        return spec;
+    }
+
+    /**
+     * フォント色を設定
+     *
+     * @param color IndexedColors(XSSFColorは不可。nullの場合は変更しない)
+     */
+    public PoiStyleSpec fontColor(Object color) {
+        if (color == null) return this;
+        if (color instanceof XSSFColor) {
+            throw new UnsupportedOperationException("XSSFColorの設定はバグがあり上手く機能しないので利用不可");
+        }
+        if (!(color instanceof IndexedColors)) {
+            throw new IllegalArgumentException("フォント色にはIndexedColorsを指定して下さい。: " + color);
+        }
+        PoiStyleSpec spec = copy();
+        spec.fontColor = (IndexedColors) color;
+        return spec;
+    }
+
+    /**
+     * フォント名とフォントサイズを設定
+     */
+    public PoiStyleSpec font(String name, int heightInPoints) {
+        PoiStyleSpec spec = copy();
+        spec.fontName = name;
+        spec.fontHeightInPoints = (short) heightInPoints;
+        return spec;
+    }
+
+    /**
+     * フォントを指定されたフォント名とフォントサイズの新しいフォントに置き換える
+     * fontと異なり、元のフォントの太字・斜体・色等は引き継がない
+     */
+    public PoiStyleSpec replaceFont(String name, int heightInPoints) {
+        PoiStyleSpec spec = font(name, heightInPoints);
+        spec.replaceFont = true;
+        spec.fontColor = null;
+        spec.strikeout = null;
+        return spec;
+    }
+
+    /**
+     * 取り消し線の有無を設定
+     */
+    public PoiStyleSpec strikeout(boolean strikeout) {
+        PoiStyleSpec spec = copy();
+        spec.strikeout = strikeout;
+        return spec;
+    }
+
+    /**
+     * 表示形式を設定("@"で文字列)
+     */
+    public PoiStyleSpec dataFormat(String format) {
+        PoiStyleSpec spec = copy();
+        spec.dataFormat = format;
+        return spec;
+    }
+
+    /**
+     * 別の変更内容を重ねる(otherで指定されている項目が優先)
+     */
+    public PoiStyleSpec merge(PoiStyleSpec other) {
+        PoiStyleSpec spec = copy();
+        if (other.borderTop != null) spec.borderTop = other.borderTop;
+        if (other.borderBottom != null) spec.borderBottom = other.borderBottom;
+        if (other.borderLeft != null) spec.borderLeft = other.borderLeft;
+        if (other.borderRight != null) spec.borderRight = other.borderRight;
+        if (other.fillColor != null) spec.fillColor = other.fillColor;
+        if (other.fillPattern != null) spec.fillPattern = other.fillPattern;
+        if (other.replaceFont) {
+            // 置き換えた後のフォントには、先に指定したフォントの変更は残らない
+            spec.replaceFont = true;
+            spec.fontColor = null;
+            spec.strikeout = null;
+        }
+        if (other.fontColor != null) spec.fontColor = other.fontColor;
+        if (other.fontName != null) spec.fontName = other.fontName;
+        if (other.fontHeightInPoints != null) spec.fontHeightInPoints = other.fontHeightInPoints;
+        if (other.strikeout != null) spec.strikeout = other.strikeout;
+        if (other.dataFormat != null) spec.dataFormat = other.dataFormat;
+        return spec;
+    }
+
+    /**
+     * フォントに関する変更があるかどうか
+     */
+    public boolean hasFontChange() {
+        return fontColor != null || fontName != null || fontHeightInPoints != null || replaceFont || strikeout != null;
+    }
+
+    /**
+     * 何も変更しないかどうか
+     */
+    public boolean isEmpty() {
+        return borderTop == null && borderBottom == null && borderLeft == null && borderRight == null
+                && fillColor == null && fillPattern == null && dataFormat == null && !hasFontChange();
+    }
+
+    public BorderStyle getBorderTop() {
+        return borderTop;
+    }
+
+    public BorderStyle getBorderBottom() {
+        return borderBottom;
+    }
+
+    public BorderStyle getBorderLeft() {
+        return borderLeft;
+    }
+
+    public BorderStyle getBorderRight() {
+        return borderRight;
+    }
+
+    public Object getFillColor() {
+        return fillColor;
+    }
+
+    public FillPatternType getFillPattern() {
+        return fillPattern;
+    }
+
+    public IndexedColors getFontColor() {
+        return fontColor;
+    }
+
+    public String getFontName() {
+        return fontName;
+    }
+
+    public Short getFontHeightInPoints() {
+        return fontHeightInPoints;
+    }
+
+    public boolean isReplaceFont() {
+        return replaceFont;
+    }
+
+    public Boolean getStrikeout() {
+        return strikeout;
+    }
+
+    public String getDataFormat() {
+        return dataFormat;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof PoiStyleSpec)) return false;
+        PoiStyleSpec other = (PoiStyleSpec) obj;
+        return borderTop == other.borderTop
+                && borderBottom == other.borderBottom
+                && borderLeft == other.borderLeft
+                && borderRight == other.borderRight
+                && Objects.equals(fillColor, other.fillColor)
+                && fillPattern == other.fillPattern
+                && fontColor == other.fontColor
+                && Objects.equals(fontName, other.fontName)
+                && Objects.equals(fontHeightInPoints, other.fontHeightInPoints)
+                && replaceFont == other.replaceFont
+                && Objects.equals(strikeout, other.strikeout)
+                && Objects.equals(dataFormat, other.dataFormat);
+    }
+
+    @Override
+    public int hashCode() {
+        // セル毎に呼ばれるので計算結果を保持する
+        int h = hash;
+        if (h == 0) {
+            h = Objects.hash(borderTop, borderBottom, borderLeft, borderRight, fillColor, fillPattern,
+                    fontColor, fontName, fontHeightInPoints, replaceFont, strikeout, dataFormat);
+            hash = h;
+        }
+        return h;
+    }
+}
@@ -1,33 +1,26 @@
 package kai9.libs;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.stream.IntStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import org.apache.poi.ss.usermodel.BorderStyle;
+import java.util.Map;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.CellStyle;
 import org.apache.poi.ss.usermodel.CellType;
 import org.apache.poi.ss.usermodel.CellValue;
-import org.apache.poi.ss.usermodel.CreationHelper;
-import org.apache.poi.ss.usermodel.DataFormat;
 import org.apache.poi.ss.usermodel.DataFormatter;
-import org.apache.poi.ss.usermodel.FillPatternType;
 import org.apache.poi.ss.usermodel.Font;
 import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.IndexedColors;
-import org.apache.poi.ss.usermodel.Name;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.ss.util.RegionUtil;
 import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
 
 /**
  * POI（エクセル操作）の自作ユーティリティ
@@ -106,6 +99,32 @@ public class PoiUtil {
         return null;
     }
 
+    /**
+     * 索引を使って文字列検索し、最初に発見した行を返す
+     * 同じシートで何度も検索する場合は、SheetIndex.buildで索引を作ってからこちらを使う
+     */
+    public static int findRow(SheetIndex index, String cellContent) {
+        return index.findRow(cellContent);
+    }
+
+    /**
+     * 索引を使って文字列検索し、最初に発見した列を返す
+     */
+    public static int findCol(SheetIndex index, String cellContent) {
+        return index.findCol(cellContent);
+    }
+
+    public static int findCol(SheetIndex index, Integer Row, String cellContent) {
+        return index.findCol(Row, cellContent);
+    }
+
+    /**
+     * 索引を使って文字列検索し、最初に発見したセルを返す
+     */
+    public static Cell findCell(SheetIndex index, String cellContent) {
+        return index.findCell(cellContent);
+    }
+
     /**
      * セルの文字を取得
      */
@@ -124,21 +143,21 @@ public class PoiUtil {
         }
         if (cell.getCellType() == CellType.NUMERIC) {
 //        	return String.valueOf(cell.getNumericCellValue());
-            DataFormatter dataFormatter = new DataFormatter();
+            // DataFormatterはワークブック単位で共有する
+            DataFormatter dataFormatter = PoiWorkbookContext.of(sheet.getWorkbook()).getDataFormatter();
             return dataFormatter.formatCellValue(cell);
         }
         if (cell.getCellType() == CellType.FORMULA) {
-            Workbook book = cell.getSheet().getWorkbook();
-            CreationHelper helper = book.getCreationHelper();
-            FormulaEvaluator evaluator = helper.createFormulaEvaluator();
+            // FormulaEvaluatorを使い回し、計算結果のキャッシュを活かす
+            PoiWorkbookContext context = PoiWorkbookContext.of(sheet.getWorkbook());
+            FormulaEvaluator evaluator = context.getEvaluator();
             CellValue value = evaluator.evaluate(cell);
             if (value.getCellType() == CellType.STRING) {
                 return value.getStringValue();
             }
             if (value.getCellType() == CellType.NUMERIC) {
 //                return  String.valueOf(value.getNumberValue());        
-                DataFormatter dataFormatter = new DataFormatter();
-                return dataFormatter.formatCellValue(cell, evaluator);
+                return context.getDataFormatter().formatCellValue(cell, evaluator);
             }
         }
         return "";
@@ -182,33 +201,13 @@ public class PoiUtil {
         // java.lang.IllegalArgumentException: Cell reference invalid: #REF!
         // at org.apache.poi.ss.util.CellReference.(CellReference.java:112)
 
-        // ワークブック内の全ての名前を取得し、List<Name> にキャスト
-        List<? extends Name> allNamesWildcard = sheet.getWorkbook().getAllNames();
-        @SuppressWarnings("unchecked")
-        List<Name> allNames = (List<Name>) allNamesWildcard;
-
-        // 名前とダミー文字列のマップを作成
-        Map<String, String> nameToDummyMap = new HashMap<>();
-        for (Name name : allNames) {
-            nameToDummyMap.put(name.getNameName(), "\"" + name.getNameName() + "【計算式ダミー】\"");
-        }
+        // ワークブック内の全ての名前から置換用の正規表現を作成
+        PoiNameMasker masker = PoiNameMasker.of(sheet.getWorkbook());
 
         // シフト対象のセルが計算式かどうかを確認し、ダミー文字列を追加
-        for (int rowNum = rowIndex + 1; rowNum <= lastRowNum; rowNum++) {
-            Row row = sheet.getRow(rowNum);
-            if (row != null) {
-                for (Cell cell : row) {
-                    if (cell.getCellType() == CellType.FORMULA) {
-                        String formula = cell.getCellFormula();
-                        for (String name : nameToDummyMap.keySet()) {
-                            if (formula.contains(name)) {
-                                // 計算式内の名前にダミー文字列を追加
-                                formula = formula.replace(name, nameToDummyMap.get(name));
-                            }
-                        }
-                        cell.setCellFormula(formula);
-                    }
-                }
+        if (!masker.isEmpty()) {
+            for (int rowNum = rowIndex + 1; rowNum <= lastRowNum; rowNum++) {
+                maskRow(sheet.getRow(rowNum), masker);
             }
         }
         // 削除する行がシートの範囲内にある場合
@@ -230,58 +229,25 @@ public class PoiUtil {
         }
 
         // 名前の定義を元に戻す
-        for (int rowNum = rowIndex; rowNum < lastRowNum; rowNum++) {
-            Row row = sheet.getRow(rowNum);
-            if (row != null) {
-                for (Cell cell : row) {
-                    if (cell.getCellType() == CellType.FORMULA) {
-                        String formula = cell.getCellFormula();
-                        for (String dummyName : nameToDummyMap.values()) {
-                            if (formula.contains(dummyName)) {
-                                // ダミー文字列を元の名前に戻す
-                                String originalName = dummyName.replace("\"", "").replace("【計算式ダミー】", "");
-                                formula = formula.replace(dummyName, originalName);
-                            }
-                        }
-                        cell.setCellFormula(formula);
-                    }
-                }
+        if (!masker.isEmpty()) {
+            for (int rowNum = rowIndex; rowNum < lastRowNum; rowNum++) {
+                unmaskRow(sheet.getRow(rowNum), masker);
             }
         }
 
+        // セルが移動したので計算結果のキャッシュを破棄
+        PoiWorkbookContext.invalidate(sheet.getWorkbook());
     }
 
     // 指定された行を削除する(範囲指定で高速化)
     public static void removeRows(Sheet sheet, List<Integer> rowIndexes) {
-        // ワークブック内の全ての名前を取得し、List<Name> にキャスト
-        List<? extends Name> allNamesWildcard = sheet.getWorkbook().getAllNames();
-        @SuppressWarnings("unchecked")
-        List<Name> allNames = (List<Name>) allNamesWildcard;
-
-        // 名前とダミー文字列のマップを作成
-        Map<String, String> nameToDummyMap = new HashMap<>();
-        for (Name name : allNames) {
-            nameToDummyMap.put(name.getNameName(), "\"" + name.getNameName() + "【計算式ダミー】\"");
-        }
+        // ワークブック内の全ての名前から置換用の正規表現を作成
+        PoiNameMasker masker = PoiNameMasker.of(sheet.getWorkbook());
 
         // シフト対象のセルが計算式かどうかを確認し、ダミー文字列を追加
-        for (int rowNum : rowIndexes) {
-            Row row = sheet.getRow(rowNum);
-            if (row != null) {
-                for (Cell cell : row) {
-                    if (cell.getCellType() == CellType.FORMULA) {
-                        String formula = cell.getCellFormula();
-                        if (!formula.contains("【計算式ダミー】")) {// 既に置換済の場合は処理しない(何故か置換済の物が混入する事象の対策)
-                            for (String name : nameToDummyMap.keySet()) {
-                                if (formula.contains(name)) {
-                                    // 計算式内の名前にダミー文字列を追加
-                                    formula = formula.replace(name, nameToDummyMap.get(name));
-                                }
-                            }
-                            cell.setCellFormula(formula);
-                        }
-                    }
-                }
+        if (!masker.isEmpty()) {
+            for (int rowNum : rowIndexes) {
+                maskRow(sheet.getRow(rowNum), masker);
             }
         }
 
@@ -346,26 +312,58 @@ public class PoiUtil {
         }
 
         // 名前の定義を元に戻す
-        for (int rowNum : rowIndexes) {
-            Row row = sheet.getRow(rowNum);
-            if (row != null) {
-                for (Cell cell : row) {
-                    if (cell.getCellType() == CellType.FORMULA) {
-                        String formula = cell.getCellFormula();
-                        for (String dummyName : nameToDummyMap.values()) {
-                            if (formula.contains(dummyName)) {
-                                // ダミー文字列を元の名前に戻す
-                                String originalName = dummyName.replace("\"", "").replace("【計算式ダミー】", "");
-                                formula = formula.replace(dummyName, originalName);
-                            }
-                        }
-                        cell.setCellFormula(formula);
-                    }
+        if (!masker.isEmpty()) {
+            for (int rowNum : rowIndexes) {
+                unmaskRow(sheet.getRow(rowNum), masker);
+            }
+        }
+
+        // セルが移動したので計算結果のキャッシュを破棄
+        PoiWorkbookContext.invalidate(sheet.getWorkbook());
+    }
+
+    // 行内の計算式の名前をダミー文字列に置き換える
+    private static void maskRow(Row row, PoiNameMasker masker) {
+        if (row == null) return;
+        for (Cell cell : row) {
+            if (cell.getCellType() == CellType.FORMULA) {
+                String formula = cell.getCellFormula();
+                // 既に置換済の場合は処理しない(何故か置換済の物が混入する事象の対策)
+                if (PoiNameMasker.isMasked(formula)) continue;
+                String masked = masker.mask(formula);
+                // 置換が無い場合は計算式を再設定しない(再解析のコストを省く)
+                if (masked != formula) {
+                    cell.setCellFormula(masked);
+                }
+            }
+        }
+    }
+
+    // 行内の計算式のダミー文字列を元の名前に戻す
+    private static void unmaskRow(Row row, PoiNameMasker masker) {
+        if (row == null) return;
+        for (Cell cell : row) {
+            if (cell.getCellType() == CellType.FORMULA) {
+                String formula = cell.getCellFormula();
+                String restored = masker.unmask(formula);
+                if (restored != formula) {
+                    cell.setCellFormula(restored);
                 }
             }
         }
     }
 
+    /**
+     * 指定された行を削除する(詰め直し方式)
+     * 削除する範囲が多い場合でも、シートの大きさに比例した時間で終わる(詳細はPoiRowCompactor)
+     *
+     * @param sheet シート
+     * @param rowIndexes 削除する行番号(順不同・重複可)
+     */
+    public static void removeRowsCompact(Sheet sheet, List<Integer> rowIndexes) {
+        PoiRowCompactor.removeRows(sheet, rowIndexes);
+    }
+
     // 指定されたインデックスに行を挿入
     public static void insertRow(Sheet sheet, int rowIndex) {
         // シートの最後の行番号を取得
@@ -377,6 +375,80 @@ public class PoiUtil {
         }
         // 新しい行を指定されたインデックスに作成
         sheet.createRow(rowIndex);
+
+        // セルが移動したので計算結果のキャッシュを破棄
+        PoiWorkbookContext.invalidate(sheet.getWorkbook());
+    }
+
+    /**
+     * 複数箇所にまとめて行を挿入
+     * insertRowを繰り返すと挿入の度に下の行を全てシフトするので、(挿入行数 × 下の行数)の計算量になる。
+     * こちらは最終的な配置を先に求め、挿入位置で区切ったブロック毎に1回だけシフトする(重ならない様に下のブロックから順に)。
+     *
+     * 使用例 ↓
+     *
+     * 5行目の前に3行、10行目の前に2行挿入(行番号は挿入前のもの)
+     * insertRows(sheet, Arrays.asList(new int[] { 5, 3 }, new int[] { 10, 2 }), true);
+     *
+     * @param sheet シート
+     * @param insertions {挿入位置, 行数}のリスト(挿入位置は挿入前の行番号、順不同・同じ位置は合算)
+     * @param copyFormatting trueの場合、挿入位置の直前の行をcopyRowFormattingで新しい行にコピー
+     */
+    public static void insertRows(Sheet sheet, List<int[]> insertions, boolean copyFormatting) {
+        // 挿入位置毎に行数を合算して昇順に並べる
+        TreeMap<Integer, Integer> counts = new TreeMap<>();
+        for (int[] insertion : insertions) {
+            if (insertion[0] < 0) {
+                throw new IllegalArgumentException("挿入位置が不正です。: " + insertion[0]);
+            }
+            if (insertion[1] > 0) {
+                counts.merge(insertion[0], insertion[1], Integer::sum);
+            }
+        }
+        if (counts.isEmpty()) return;
+
+        int size = counts.size();
+        int[] positions = new int[size];
+        int[] shifts = new int[size]; // そのブロックまでに挿入される累計行数(=ブロックのシフト量)
+        int index = 0;
+        int total = 0;
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            total += entry.getValue();
+            positions[index] = entry.getKey();
+            shifts[index] = total;
+            index++;
+        }
+
+        // 下のブロックから順にシフト(ブロック毎に1回だけ)
+        int lastRowNum = sheet.getLastRowNum();
+        for (int i = size - 1; i >= 0; i--) {
+            int start = positions[i];
+            int end = (i == size - 1) ? lastRowNum : Math.min(positions[i + 1] - 1, lastRowNum);
+            if (start <= end) {
+                sheet.shiftRows(start, end, shifts[i]);
+            }
+        }
+
+        // 空いた位置に新しい行を作成
+        for (int i = 0; i < size; i++) {
+            int count = counts.get(positions[i]);
+            int newStart = positions[i] + shifts[i] - count;
+            for (int j = 0; j < count; j++) {
+                sheet.createRow(newStart + j);
+                if (copyFormatting && positions[i] > 0) {
+                    // 直前の行(シフト後の位置)をコピー
+                    copyRowFormatting(sheet, newStart - 1, newStart + j);
+                }
+            }
+        }
+
+        // セルが移動したので計算結果のキャッシュを破棄
+        PoiWorkbookContext.invalidate(sheet.getWorkbook());
+    }
+
+    // 書式のコピーが不要な場合のラッパー
+    public static void insertRows(Sheet sheet, List<int[]> insertions) {
+        insertRows(sheet, insertions, false);
     }
 
     // 指定されたインデックスの行の書式をコピー
@@ -403,10 +475,8 @@ public class PoiUtil {
 
     // 指定されたセルの書式をコピー
     private static void copyCellFormatting(Cell sourceCell, Cell targetCell) {
-        // スタイルをコピー
-        CellStyle newCellStyle = targetCell.getSheet().getWorkbook().createCellStyle();
-        newCellStyle.cloneStyleFrom(sourceCell.getCellStyle());
-        targetCell.setCellStyle(newCellStyle);
+        // スタイルをコピー(同じワークブック内なので複製せずに共有する。複製するとスタイル数が増え続ける)
+        targetCell.setCellStyle(sourceCell.getCellStyle());
 
         // コメントをコピー（ある場合）
         if (sourceCell.getCellComment() != null) {
@@ -436,59 +506,27 @@ public class PoiUtil {
     }
 
     /**
-     * 全てのセルのフォントを指定されたフォント名とフォントサイズに設定
+     * 全てのセルのフォントを指定されたフォント名とフォントサイズの新しいフォントに置き換える(太字・斜体・色等は引き継がない)
      *
      * @param sheet シート
      * @param fontName フォント名
      * @param fontSize フォントサイズ
      */
     public static void setFont(Sheet sheet, String fontName, int fontSize) {
-        Workbook workbook = sheet.getWorkbook();
-
-        // 新しいフォントを作成
-        Font newFont = workbook.createFont();
-        newFont.setFontName(fontName);
-        newFont.setFontHeightInPoints((short) fontSize);
-
-        // デフォルトのスタイルを作成
-        CellStyle baseStyle = workbook.createCellStyle();
-        baseStyle.setFont(newFont);
-
-        // スタイルのキャッシュを作成
-        Map<CellStyle, CellStyle> styleCache = new HashMap<>();
+        // 同じ書式のスタイルはワークブック内で使い回す
+        PoiStyleRegistry registry = PoiStyleRegistry.of(sheet.getWorkbook());
+        PoiStyleSpec spec = PoiStyleSpec.create().replaceFont(fontName, fontSize);
 
         for (Row row : sheet) {
             for (Cell cell : row) {
-                CellStyle existingStyle = cell.getCellStyle();
-                if (existingStyle != null) {
-                    // 既存のスタイルがキャッシュにあるか確認
-                    CellStyle cachedStyle = styleCache.get(existingStyle);
-                    if (cachedStyle == null) {
-                        // キャッシュにない場合、新しいスタイルを作成してキャッシュに追加
-                        CellStyle newStyle = workbook.createCellStyle();
-                        newStyle.cloneStyleFrom(existingStyle);
-                        newStyle.setFont(newFont);
-                        styleCache.put(existingStyle, newStyle);
-                        cachedStyle = newStyle;
-                    }
-                    // セルにキャッシュされたスタイルを設定
-                    cell.setCellStyle(cachedStyle);
-                } else {
-                    // 既存のスタイルがない場合、新しいスタイルを直接設定
-                    cell.setCellStyle(baseStyle);
-                }
+                cell.setCellStyle(registry.derive(cell.getCellStyle(), spec));
             }
         }
     }
 
     public static void setCellFormatAsText(Sheet sheet, CellRangeAddress range) {
-        Workbook workbook = sheet.getWorkbook();
-
-        // スタイルのキャッシュを作成
-        Map<CellStyle, CellStyle> styleCache = new HashMap<>();
-
-        DataFormat dataFormat = workbook.createDataFormat();
-        CellStyle newStyle;
+        // 同じ書式のスタイルはワークブック内で使い回す
+        PoiStyleRegistry registry = PoiStyleRegistry.of(sheet.getWorkbook());
 
         for (int rowIndex = range.getFirstRow(); rowIndex <= range.getLastRow(); rowIndex++) {
             Row row = sheet.getRow(rowIndex);
@@ -502,24 +540,8 @@ public class PoiUtil {
                     cell = row.createCell(colIndex);
                 }
 
-                CellStyle existingStyle = cell.getCellStyle();
-
-                // 既存のスタイルがキャッシュにあるか確認
-                newStyle = styleCache.get(existingStyle);
-                if (newStyle == null) {
-                    newStyle = workbook.createCellStyle();
-                    if (existingStyle != null) {
-                        newStyle.cloneStyleFrom(existingStyle);
-                    }
-
-                    // セル書式を文字列に設定
-                    newStyle.setDataFormat(dataFormat.getFormat("@"));
-
-                    styleCache.put(existingStyle, newStyle);
-                }
-
-                // セルに新しいスタイルを設定
-                cell.setCellStyle(newStyle);
+                // セル書式を文字列にしたスタイルを設定
+                cell.setCellStyle(registry.derive(cell.getCellStyle(), PoiStyleSpec.TEXT_FORMAT));
             }
         }
     }
@@ -548,8 +570,9 @@ public class PoiUtil {
         if (newStyle == null) {
             Workbook workbook = sheet.getWorkbook();
 
-            // スタイルのキャッシュを作成
-            Map<CellStyle, CellStyle> styleCache = new HashMap<>();
+            // 同じ書式のスタイルはワークブック内で使い回す
+            PoiStyleRegistry registry = PoiStyleRegistry.of(workbook);
+            PoiStyleSpec spec = PoiStyleSpec.create().fill(bgColor).fontColor(fontColor);
             for (int rowIndex = range.getFirstRow(); rowIndex <= range.getLastRow(); rowIndex++) {
                 Row row = sheet.getRow(rowIndex);
                 if (row == null) {
@@ -563,89 +586,53 @@ public class PoiUtil {
                     }
 
                     CellStyle existingStyle = cell.getCellStyle();
-                    Font existingFont = null;
+                    newStyle = null;
 
-                    // 既存のスタイルがあり、それがキャッシュされているか確認
+                    // 既存のスタイルがあれば、今回の色が既に適用されているか確認
                     if (existingStyle != null) {
-                        existingFont = workbook.getFontAt(existingStyle.getFontIndex());
-                        if (styleCache.containsKey(existingStyle)) {
-                            newStyle = styleCache.get(existingStyle);
-                        } else {
-                            boolean backgroundMatches = false;
-                            boolean fontColorMatches = false;
-
-                            // 背景色が一致するか確認
-                            if (bgColor instanceof IndexedColors) {
-                                short bgColorIndex = ((IndexedColors) bgColor).getIndex();
-                                short existingColorIndex = existingStyle.getFillForegroundColor();
-
-                                // 自動色 (64) は白色 (9) として扱う
-                                if (existingColorIndex == 64 && bgColorIndex == IndexedColors.WHITE.getIndex()) {
-                                    backgroundMatches = true;
-                                } else {
-                                    backgroundMatches = existingColorIndex == bgColorIndex;
-                                }
-                            } else if (bgColor instanceof XSSFColor) {
-                                if (existingStyle.getFillForegroundColorColor() != null) {
-                                    backgroundMatches = existingStyle.getFillForegroundColorColor().equals(bgColor);
-                                }
-                            }
+                        Font existingFont = workbook.getFontAt(existingStyle.getFontIndex());
+                        boolean backgroundMatches = false;
+                        boolean fontColorMatches = false;
 
-                            // フォント色が一致するか確認
-                            if (existingFont != null) {
-                                short fontColorIndex = existingFont.getColor();
-                                short desiredColorIndex = (fontColor instanceof IndexedColors) ? ((IndexedColors) fontColor).getIndex() : -1;
-
-                                // 自動色 (0) は黒色 (IndexedColors.BLACK.getIndex()) として扱う
-                                if ((fontColorIndex == 0 || fontColorIndex == IndexedColors.AUTOMATIC.getIndex()) && desiredColorIndex == IndexedColors.BLACK.getIndex()) {
-                                    fontColorMatches = true;
-                                } else {
-                                    fontColorMatches = fontColorIndex == desiredColorIndex;
-                                }
-                            }
+                        // 背景色が一致するか確認
+                        if (bgColor instanceof IndexedColors) {
+                            short bgColorIndex = ((IndexedColors) bgColor).getIndex();
+                            short existingColorIndex = existingStyle.getFillForegroundColor();
 
-                            // 背景色とフォント色が既存のスタイルと一致する場合、そのまま流用
-                            if (backgroundMatches && fontColorMatches) {
-                                newStyle = existingStyle;
+                            // 自動色 (64) は白色 (9) として扱う
+                            if (existingColorIndex == 64 && bgColorIndex == IndexedColors.WHITE.getIndex()) {
+                                backgroundMatches = true;
+                            } else {
+                                backgroundMatches = existingColorIndex == bgColorIndex;
                             }
-                        }
-                    }
-
-                    if (newStyle == null) {
-                        // 一致しない場合、新しいスタイルを作成
-                        newStyle = workbook.createCellStyle();
-                        if (existingStyle != null) {
-                            newStyle.cloneStyleFrom(existingStyle);
-                        }
-
-                        // 背景色を設定
-                        if (bgColor instanceof IndexedColors) {
-                            newStyle.setFillForegroundColor(((IndexedColors) bgColor).getIndex());
                         } else if (bgColor instanceof XSSFColor) {
-                            newStyle.setFillForegroundColor((XSSFColor) bgColor);
+                            if (existingStyle.getFillForegroundColorColor() != null) {
+                                backgroundMatches = existingStyle.getFillForegroundColorColor().equals(bgColor);
+                            }
                         }
-                        newStyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
 
-                        // フォント色を設定
-                        XSSFFont newFont = (XSSFFont) workbook.createFont();
+                        // フォント色が一致するか確認
                         if (existingFont != null) {
-                            newFont.setFontName(existingFont.getFontName());
-                            newFont.setFontHeightInPoints(existingFont.getFontHeightInPoints());
-                            newFont.setBold(existingFont.getBold());
-                            newFont.setItalic(existingFont.getItalic());
-                            newFont.setStrikeout(existingFont.getStrikeout());
-                            newFont.setTypeOffset(existingFont.getTypeOffset());
-                            newFont.setUnderline(existingFont.getUnderline());
+                            short fontColorIndex = existingFont.getColor();
+                            short desiredColorIndex = (fontColor instanceof IndexedColors) ? ((IndexedColors) fontColor).getIndex() : -1;
+
+                            // 自動色 (0) は黒色 (IndexedColors.BLACK.getIndex()) として扱う
+                            if ((fontColorIndex == 0 || fontColorIndex == IndexedColors.AUTOMATIC.getIndex()) && desiredColorIndex == IndexedColors.BLACK.getIndex()) {
+                                fontColorMatches = true;
+                            } else {
+                                fontColorMatches = fontColorIndex == desiredColorIndex;
+                            }
                         }
 
-                        if (fontColor instanceof IndexedColors) {
-                            newFont.setColor(((IndexedColors) fontColor).getIndex());
-                        } else if (fontColor instanceof XSSFColor) {
-                            throw new UnsupportedOperationException("XSSFColorの設定はバグがあり上手く機能しないので利用不可");
+                        // 背景色とフォント色が既存のスタイルと一致する場合、そのまま流用
+                        if (backgroundMatches && fontColorMatches) {
+                            newStyle = existingStyle;
                         }
+                    }
 
-                        newStyle.setFont(newFont);
-                        styleCache.put(existingStyle, newStyle);
+                    if (newStyle == null) {
+                        // 一致しない場合、色を変えたスタイルを登録簿から取得
+                        newStyle = registry.derive(existingStyle, spec);
                     }
 
                     // セルに新しいスタイルを設定
@@ -719,70 +706,7 @@ public class PoiUtil {
      */
     // IndexedColorsを使用するメソッド
     public static void setCellBackgroundAndFontColor_void(Sheet sheet, CellRangeAddress range, Object bgColor, Object fontColor) {
-        Workbook workbook = sheet.getWorkbook();
-
-        // スタイルのキャッシュを作成
-        Map<CellStyle, CellStyle> styleCache = new HashMap<>();
-
-        for (int rowIndex = range.getFirstRow(); rowIndex <= range.getLastRow(); rowIndex++) {
-            Row row = sheet.getRow(rowIndex);
-            if (row == null) {
-                row = sheet.createRow(rowIndex);
-            }
-
-            for (int colIndex = range.getFirstColumn(); colIndex <= range.getLastColumn(); colIndex++) {
-                Cell cell = row.getCell(colIndex);
-                if (cell == null) {
-                    cell = row.createCell(colIndex);
-                }
-
-                CellStyle existingStyle = cell.getCellStyle();
-                CellStyle newStyle;
-
-                // 既存のスタイルがキャッシュにあるか確認
-                if (existingStyle != null && styleCache.containsKey(existingStyle)) {
-                    newStyle = styleCache.get(existingStyle);
-                } else {
-                    newStyle = workbook.createCellStyle();
-                    if (existingStyle != null) {
-                        newStyle.cloneStyleFrom(existingStyle);
-                    }
-
-                    // 背景色を設定
-                    if (bgColor instanceof IndexedColors) {
-                        newStyle.setFillForegroundColor(((IndexedColors) bgColor).getIndex());
-                    } else if (bgColor instanceof XSSFColor) {
-                        newStyle.setFillForegroundColor((XSSFColor) bgColor);
-                    }
-                    newStyle.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-
-                    // フォント色を設定
-                    XSSFFont newFont = (XSSFFont) workbook.createFont();
-                    Font existingFont = existingStyle != null ? workbook.getFontAt(existingStyle.getFontIndex()) : null;
-                    if (existingFont != null) {
-                        newFont.setFontName(existingFont.getFontName());
-                        newFont.setFontHeightInPoints(existingFont.getFontHeightInPoints());
-                        newFont.setBold(existingFont.getBold());
-                        newFont.setItalic(existingFont.getItalic());
-                        newFont.setStrikeout(existingFont.getStrikeout());
-                        newFont.setTypeOffset(existingFont.getTypeOffset());
-                        newFont.setUnderline(existingFont.getUnderline());
-                    }
-
-                    if (fontColor instanceof IndexedColors) {
-                        newFont.setColor(((IndexedColors) fontColor).getIndex());
-                    } else if (fontColor instanceof XSSFColor) {
-                        throw new UnsupportedOperationException("XSSFColorの設定はバグがあり上手く機能しないので利用不可");
-                    }
-
-                    newStyle.setFont(newFont);
-                    styleCache.put(existingStyle, newStyle);
-                }
-
-                // セルに新しいスタイルを設定
-                cell.setCellStyle(newStyle);
-            }
-        }
+        new PoiStylePlan().colors(range, bgColor, fontColor).apply(sheet);
     }
 
     /**
@@ -795,59 +719,8 @@ public class PoiUtil {
      * @param endColumn 終了列インデックス
      */
     public static void setGridLines(Sheet sheet, int startRow, int startColumn, int endRow, int endColumn) {
-        // 外側の罫線を設定
-        CellRangeAddress region = new CellRangeAddress(startRow, endRow, startColumn, endColumn);
-        RegionUtil.setBorderTop(BorderStyle.THIN, region, sheet);
-        RegionUtil.setBorderBottom(BorderStyle.THIN, region, sheet);
-        RegionUtil.setBorderLeft(BorderStyle.THIN, region, sheet);
-        RegionUtil.setBorderRight(BorderStyle.THIN, region, sheet);
-
-        // ワークブックを取得
-        Workbook workbook = sheet.getWorkbook();
-
-        // スタイルのキャッシュを作成
-        Map<CellStyle, CellStyle> styleCache = new HashMap<>();
-
-        // 内側の罫線を設定
-        for (int row = startRow; row <= endRow; row++) {
-            Row sheetRow = sheet.getRow(row);
-            if (sheetRow == null) {
-                sheetRow = sheet.createRow(row);
-            }
-            for (int col = startColumn; col <= endColumn; col++) {
-                Cell cell = sheetRow.getCell(col);
-                if (cell == null) {
-                    cell = sheetRow.createCell(col);
-                }
-                CellStyle existingStyle = cell.getCellStyle();
-
-                if (existingStyle != null) {
-                    // 既存のスタイルがキャッシュにあるか確認
-                    CellStyle cachedStyle = styleCache.get(existingStyle);
-                    if (cachedStyle == null) {
-                        // キャッシュにない場合、新しいスタイルを作成してキャッシュに追加
-                        CellStyle newStyle = workbook.createCellStyle();
-                        newStyle.cloneStyleFrom(existingStyle);
-                        newStyle.setBorderBottom(BorderStyle.THIN);
-                        newStyle.setBorderTop(BorderStyle.THIN);
-                        newStyle.setBorderLeft(BorderStyle.THIN);
-                        newStyle.setBorderRight(BorderStyle.THIN);
-                        styleCache.put(existingStyle, newStyle);
-                        cachedStyle = newStyle;
-                    }
-                    // セルにキャッシュされたスタイルを設定
-                    cell.setCellStyle(cachedStyle);
-                } else {
-                    // 既存のスタイルがない場合、新しいスタイルを作成して適用
-                    CellStyle newStyle = workbook.createCellStyle();
-                    newStyle.setBorderBottom(BorderStyle.THIN);
-                    newStyle.setBorderTop(BorderStyle.THIN);
-                    newStyle.setBorderLeft(BorderStyle.THIN);
-                    newStyle.setBorderRight(BorderStyle.THIN);
-                    cell.setCellStyle(newStyle);
-                }
-            }
-        }
+        // 全てのセルの上下左右に罫線を引くので、外枠も含めて1回の走査で済む
+        new PoiStylePlan().gridLines(new CellRangeAddress(startRow, endRow, startColumn, endColumn)).apply(sheet);
     }
 
     // レンジ指定用のラッパー
@@ -870,6 +743,14 @@ public class PoiUtil {
         return lastRowNum;
     }
 
+    /**
+     * 指定列の末尾行を返す(記録済の使用範囲を使う)
+     * 列毎に何度も呼ぶ場合は、SheetExtent.buildで使用範囲を記録してからこちらを使う
+     */
+    public static int getLastRowNumInColumn(SheetExtent extent, int column) {
+        return extent.getLastRowNumInColumn(column);
+    }
+
     /**
      * 指定された範囲のセルに、格子状の罫線を引く
      *
@@ -883,68 +764,11 @@ public class PoiUtil {
         CellStyle newStyle = baseStyle;
 
         if (newStyle == null) {
-            // 外側の罫線を設定
-            CellRangeAddress region = new CellRangeAddress(startRow, endRow, startColumn, endColumn);
-            RegionUtil.setBorderTop(BorderStyle.THIN, region, sheet);
-            RegionUtil.setBorderBottom(BorderStyle.THIN, region, sheet);
-            RegionUtil.setBorderLeft(BorderStyle.THIN, region, sheet);
-            RegionUtil.setBorderRight(BorderStyle.THIN, region, sheet);
-
-            // ワークブックを取得
-            Workbook workbook = sheet.getWorkbook();
-            Map<CellStyle, CellStyle> styleCache = new HashMap<>();
-
-            // 内側の罫線を設定
-            for (int row = startRow; row <= endRow; row++) {
-                Row sheetRow = sheet.getRow(row);
-                if (sheetRow == null) {
-                    sheetRow = sheet.createRow(row);
-                }
-                for (int col = startColumn; col <= endColumn; col++) {
-                    Cell cell = sheetRow.getCell(col);
-                    if (cell == null) {
-                        cell = sheetRow.createCell(col);
-                    }
-                    CellStyle existingStyle = cell.getCellStyle();
+            // 全てのセルの上下左右に罫線を引くので、外枠も含めて1回の走査で済む
+            new PoiStylePlan().gridLines(new CellRangeAddress(startRow, endRow, startColumn, endColumn)).apply(sheet);
 
-                    if (existingStyle != null) {
-                        // 既存のスタイルがキャッシュにあるか確認
-                        CellStyle cachedStyle = styleCache.get(existingStyle);
-                        if (cachedStyle == null) {
-                            // 既存のスタイルに今回設定するスタイルが既に適用されているかチェック
-                            boolean bordersMatch = existingStyle.getBorderBottom() == BorderStyle.THIN &&
-                                    existingStyle.getBorderTop() == BorderStyle.THIN &&
-                                    existingStyle.getBorderLeft() == BorderStyle.THIN &&
-                                    existingStyle.getBorderRight() == BorderStyle.THIN;
-
-                            if (bordersMatch) {
-                                // 既存のスタイルが今回のスタイルと一致する場合、そのまま流用
-                                cachedStyle = existingStyle;
-                            } else {
-                                // 一致しない場合、新しいスタイルを作成してキャッシュに追加
-                                newStyle = workbook.createCellStyle();
-                                newStyle.cloneStyleFrom(existingStyle);
-                                newStyle.setBorderBottom(BorderStyle.THIN);
-                                newStyle.setBorderTop(BorderStyle.THIN);
-                                newStyle.setBorderLeft(BorderStyle.THIN);
-                                newStyle.setBorderRight(BorderStyle.THIN);
-                                styleCache.put(existingStyle, newStyle);
-                                cachedStyle = newStyle;
-                            }
-                        }
-                        // セルにキャッシュされたスタイルを設定
-                        cell.setCellStyle(cachedStyle);
-                    } else {
-                        // 既存のスタイルがない場合、新しいスタイルを作成して適用
-                        newStyle = workbook.createCellStyle();
-                        newStyle.setBorderBottom(BorderStyle.THIN);
-                        newStyle.setBorderTop(BorderStyle.THIN);
-                        newStyle.setBorderLeft(BorderStyle.THIN);
-                        newStyle.setBorderRight(BorderStyle.THIN);
-                        cell.setCellStyle(newStyle);
-                    }
-                }
-            }
+            // 最後のセルのスタイルを返す(次回の呼出でbaseStyleとして使える)
+            newStyle = sheet.getRow(endRow).getCell(endColumn).getCellStyle();
         } else {
             // 基本スタイルが渡されていた場合、そのまま使用する
             for (int row = startRow; row <= endRow; row++) {
@@ -1040,6 +864,13 @@ public class PoiUtil {
         return lastColNum - 1; // 0から始まるインデックスに変換する
     }
 
+    /**
+     * シート内の最後の列のインデックスを取得(記録済の使用範囲を使う)
+     */
+    public static int getLastColumnIndex(SheetExtent extent) {
+        return extent.getLastColumnIndex();
+    }
+
     public static void printCellStyleCount(Sheet sheet) {
         // セットを使ってユニークなスタイルをカウント
         Set<CellStyle> uniqueStyles = new HashSet<>();
@@ -1063,30 +894,26 @@ public class PoiUtil {
         System.out.println("Sheet '" + sheet.getSheetName() + "' contains " + uniqueStyles.size() + " unique cell styles.");
     }
 
+    /**
+     * ワークブック全体のスタイル・フォントの使用状況をシート毎に集計する
+     */
+    public static PoiStyleAnalyzer.Report analyzeCellStyles(Workbook workbook) {
+        return PoiStyleAnalyzer.analyze(workbook);
+    }
+
+    /**
+     * 値が同じスタイルを1つに付け替える(保存前に実行する)
+     */
+    public static PoiStyleAnalyzer.Report compactCellStyles(Workbook workbook) {
+        return PoiStyleAnalyzer.compact(workbook);
+    }
+
     // セルに取り消し線を付ける
     public static void addStrikethroughToCell(Workbook workbook, Cell cell) {
         if (cell == null) return;
-        CellStyle existingStyle = cell.getCellStyle();
-        Font existingFont = workbook.getFontAt(existingStyle.getFontIndex());
-
-        // 新しいフォントを作成して既存のフォントのプロパティをコピー
-        Font newFont = workbook.createFont();
-        newFont.setFontName(existingFont.getFontName());
-        newFont.setFontHeight(existingFont.getFontHeight());
-        newFont.setBold(existingFont.getBold());
-        newFont.setItalic(existingFont.getItalic());
-        newFont.setStrikeout(true); // 取り消し線を追加
-        newFont.setColor(existingFont.getColor());
-        newFont.setUnderline(existingFont.getUnderline());
-        newFont.setTypeOffset(existingFont.getTypeOffset());
-
-        // 新しいスタイルを作成して既存のスタイルのプロパティをコピー
-        CellStyle newStyle = workbook.createCellStyle();
-        newStyle.cloneStyleFrom(existingStyle);
-        newStyle.setFont(newFont);
-
-        // 新しいスタイルをセルに適用
-        cell.setCellStyle(newStyle);
+
+        // 取り消し線付きのスタイルはワークブック内で使い回す
+        cell.setCellStyle(PoiStyleRegistry.of(workbook).derive(cell.getCellStyle(), PoiStyleSpec.STRIKEOUT));
     }
 
 }
@@ -0,0 +1,136 @@
+package kai9.libs;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * ワークブック単位で使い回すPOIの部品を保持する
+ *
+ * FormulaEvaluatorは内部に計算結果のキャッシュを持つので、セル毎に作り直すとキャッシュが無駄になる。
+ * DataFormatterも生成コストが高いので、ワークブック毎に1つだけ作って共有する。
+ * セルスタイルの登録簿(PoiStyleRegistry)もここで保持する。
+ *
+ * コンテキストはWorkbookを弱参照で保持するので、DataFormatterだけを使っている間はWorkbookを手放せばすぐに解放される。
+ * FormulaEvaluatorとセルスタイル登録簿は内部でWorkbookを参照しているので、これらを生成した後はreleaseを呼ぶまでWorkbookも解放されない。
+ * 処理を終えたら必ずreleaseを呼ぶ事。
+ *
+ * Workbook自体がスレッドセーフでは無いので、同一Workbookを複数スレッドから同時に扱わない事
+ */
+public class PoiWorkbookContext {
+
+    private static final Map<Workbook, PoiWorkbookContext> CONTEXTS = new WeakHashMap<>();
+
+    private final WeakReference<Workbook> workbook;
+    private final DataFormatter dataFormatter = new DataFormatter();
+    // releaseで他のスレッドから破棄されるのでvolatileとする
+    private volatile FormulaEvaluator evaluator;
+    private volatile PoiStyleRegistry styleRegistry;
+
+    private PoiWorkbookContext(Workbook workbook) {
+        this.workbook = new WeakReference<>(workbook);
+    }
+
+    /**
+     * ワークブックに対応するコンテキストを返す(無ければ作成)
+     */
+    public static PoiWorkbookContext of(Workbook workbook) {
+        synchronized (CONTEXTS) {
+            PoiWorkbookContext context = CONTEXTS.get(workbook);
+            if (context == null) {
+                context = new PoiWorkbookContext(workbook);
+                CONTEXTS.put(workbook, context);
+            }
+            return context;
+        }
+    }
+
+    /**
+     * 行の削除・挿入等でセルが移動した後に呼び、計算結果のキャッシュを破棄する
+     */
+    public static void invalidate(Workbook workbook) {
+        PoiWorkbookContext context = peek(workbook);
+        FormulaEvaluator evaluator = (context == null) ? null : context.evaluator;
+        if (evaluator != null) {
+            evaluator.clearAllCachedResultValues();
+        }
+    }
+
+    /**
+     * スタイルの番号が変わった後に呼び、セルスタイル登録簿を破棄する(次回の利用時に作り直される)
+     */
+    public static void invalidateStyles(Workbook workbook) {
+        PoiWorkbookContext context = peek(workbook);
+        if (context != null) {
+            synchronized (context) {
+                context.styleRegistry = null;
+            }
+        }
+    }
+
+    /**
+     * コンテキストを破棄する(ワークブックを閉じる時等)
+     */
+    public static void release(Workbook workbook) {
+        PoiWorkbookContext context;
+        synchronized (CONTEXTS) {
+            context = CONTEXTS.remove(workbook);
+        }
+        if (context != null) {
+            synchronized (context) {
+                context.evaluator = null;
+                context.styleRegistry = null;
+            }
+        }
+    }
+
+    // 作成済のコンテキストだけを返す
+    private static PoiWorkbookContext peek(Workbook workbook) {
+        synchronized (CONTEXTS) {
+            return CONTEXTS.get(workbook);
+        }
+    }
+
+    /**
+     * 共有のDataFormatterを返す
+     */
+    public DataFormatter getDataFormatter() {
+        return dataFormatter;
+    }
+
+    /**
+     * 共有のFormulaEvaluatorを返す(初回に生成)
+     */
+    public synchronized FormulaEvaluator getEvaluator() {
+        FormulaEvaluator current = evaluator;
+        if (current == null) {
+            current = workbook().getCreationHelper().createFormulaEvaluator();
+            evaluator = current;
+        }
+        return current;
+    }
+
+    /**
+     * 共有のセルスタイル登録簿を返す(初回に既存スタイルを登録して生成)
+     */
+    public synchronized PoiStyleRegistry getStyleRegistry() {
+        PoiStyleRegistry current = styleRegistry;
+        if (current == null) {
+            current = new PoiStyleRegistry(workbook());
+            styleRegistry = current;
+        }
+        return current;
+    }
+
+    private Workbook workbook() {
+        Workbook wb = workbook.get();
+        if (wb == null) {
+            throw new IllegalStateException("ワークブックは既に解放されています。");
+        }
+        return wb;
+    }
+}
@@ -0,0 +1,111 @@
+package kai9.libs;
+
+import java.util.Arrays;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+
+/**
+ * シートの使用範囲(列毎の最終行、行毎の最終セル)
+ *
+ * PoiUtil.getLastRowNumInColumnは呼出毎に全行を走査するので、列毎に呼ぶと(行数 × 列数)の計算量になる。
+ * getLastColumnIndexも同様に全行を走査する。
+ * 一度だけ走査して列毎・行毎の末尾を記録しておき、以降は配列を引くだけで済ませる。
+ *
+ * シートを編集した場合は作り直す事
+ *
+ * 使用例 ↓
+ *
+ * SheetExtent extent = SheetExtent.build(sheet);
+ * for (int col = 0; col <= PoiUtil.getLastColumnIndex(extent); col++) {
+ *     int lastRow = PoiUtil.getLastRowNumInColumn(extent, col);
+ * }
+ */
+public class SheetExtent {
+
+    private final Sheet sheet;
+    // 列番号 → 空白以外のセルが有る最終行(無い場合は-1)
+    private final int[] lastRowByColumn;
+    // 行番号 - firstRow → Row.getLastCellNum(行が無い場合は-1)
+    private final int[] lastCellByRow;
+    private final int firstRow;
+    private final int lastColumnIndex;
+
+    private SheetExtent(Sheet sheet, int[] lastRowByColumn, int[] lastCellByRow, int firstRow, int lastColumnIndex) {
+        this.sheet = sheet;
+        this.lastRowByColumn = lastRowByColumn;
+        this.lastCellByRow = lastCellByRow;
+        this.firstRow = firstRow;
+        this.lastColumnIndex = lastColumnIndex;
+    }
+
+    /**
+     * シートを1回だけ走査して使用範囲を記録
+     *
+     * @param sheet シート
+     * @return 使用範囲
+     */
+    public static SheetExtent build(Sheet sheet) {
+        int firstRow = Math.max(sheet.getFirstRowNum(), 0);
+        int lastRow = sheet.getLastRowNum();
+        int[] lastCellByRow = new int[Math.max(lastRow - firstRow + 1, 0)];
+        Arrays.fill(lastCellByRow, -1);
+        int[] lastRowByColumn = new int[16];
+        Arrays.fill(lastRowByColumn, -1);
+        int lastCellNum = 0;
+
+        // 行は昇順に返るので、列毎の最終行は上書きしていけば良い
+        for (Row row : sheet) {
+            int rowNum = row.getRowNum();
+            int cellNum = row.getLastCellNum();
+            lastCellByRow[rowNum - firstRow] = cellNum;
+            if (cellNum > lastCellNum) {
+                lastCellNum = cellNum;
+            }
+            for (Cell cell : row) {
+                if (cell.getCellType() == CellType.BLANK) continue;
+                int col = cell.getColumnIndex();
+                if (col >= lastRowByColumn.length) {
+                    int oldLength = lastRowByColumn.length;
+                    lastRowByColumn = Arrays.copyOf(lastRowByColumn, Math.max(col + 1, oldLength * 2));
+                    Arrays.fill(lastRowByColumn, oldLength, lastRowByColumn.length, -1);
+                }
+                lastRowByColumn[col] = rowNum;
+            }
+        }
+        return new SheetExtent(sheet, lastRowByColumn, lastCellByRow, firstRow, lastCellNum - 1);
+    }
+
+    /**
+     * 元になったシートを返す
+     */
+    public Sheet getSheet() {
+        return sheet;
+    }
+
+    /**
+     * 指定列の末尾行を返す(空白以外のセルが無い場合は-1)
+     */
+    public int getLastRowNumInColumn(int column) {
+        if (column < 0 || column >= lastRowByColumn.length) return -1;
+        return lastRowByColumn[column];
+    }
+
+    /**
+     * シート内の最後の列のインデックスを返す(セルが無い場合は-1)
+     */
+    public int getLastColumnIndex() {
+        return lastColumnIndex;
+    }
+
+    /**
+     * 指定行のRow.getLastCellNumを返す(行が無い場合は-1)
+     */
+    public int getLastCellNum(int rowIndex) {
+        int i = rowIndex - firstRow;
+        if (i < 0 || i >= lastCellByRow.length) return -1;
+        return lastCellByRow[i];
+    }
+}
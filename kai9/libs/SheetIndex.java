@@ -0,0 +1,130 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellAddress;
+
+/**
+ * シート内の文字列セルの索引
+ *
+ * PoiUtil.findRow/findCol/findCellは呼出毎にシート全体を走査するので、見出しを何十個も探す取込処理では
+ * (見出し数 × セル数)の計算量になる。一度だけ走査して、前後の空白を除いた文字列 → セル位置 を記録しておき、
+ * 以降の検索はハッシュ引きで済ませる。
+ *
+ * シートを編集した場合は索引を作り直す事
+ *
+ * 使用例 ↓
+ *
+ * SheetIndex index = SheetIndex.build(sheet);
+ * int row = PoiUtil.findRow(index, "項目名");
+ * int col = PoiUtil.findCol(index, row, "桁数");
+ */
+public class SheetIndex {
+
+    private final Sheet sheet;
+    // 文字列(trim済) → 出現位置(行→列の昇順)
+    private final Map<String, List<CellAddress>> positions;
+
+    private SheetIndex(Sheet sheet, Map<String, List<CellAddress>> positions) {
+        this.sheet = sheet;
+        this.positions = positions;
+    }
+
+    /**
+     * シートを1回だけ走査して索引を作成
+     *
+     * @param sheet シート
+     * @return 索引
+     */
+    public static SheetIndex build(Sheet sheet) {
+        Map<String, List<CellAddress>> positions = new HashMap<>();
+        for (int i = sheet.getFirstRowNum(); i <= sheet.getLastRowNum(); i++) {
+            Row row = sheet.getRow(i);
+            if (row == null) continue;
+            for (Cell cell : row) {
+                if (cell.getCellType() == CellType.STRING) {
+                    String key = cell.getStringCellValue().trim();
+                    List<CellAddress> list = positions.get(key);
+                    if (list == null) {
+                        // 見出しは大半が1回しか出現しないので最小サイズで確保
+                        list = new ArrayList<>(1);
+                        positions.put(key, list);
+                    }
+                    list.add(new CellAddress(i, cell.getColumnIndex()));
+                }
+            }
+        }
+        return new SheetIndex(sheet, positions);
+    }
+
+    /**
+     * 索引の元になったシートを返す
+     */
+    public Sheet getSheet() {
+        return sheet;
+    }
+
+    /**
+     * 最初に発見した位置を返す(無い場合はnull)
+     */
+    public CellAddress getFirst(String cellContent) {
+        List<CellAddress> list = positions.get(cellContent);
+        return list == null ? null : list.get(0);
+    }
+
+    /**
+     * 全ての出現位置を返す(行→列の昇順。無い場合は空リスト)
+     */
+    public List<CellAddress> getAll(String cellContent) {
+        List<CellAddress> list = positions.get(cellContent);
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    /**
+     * 文字列検索し、最初に発見した行を返す(無い場合は-1)
+     */
+    public int findRow(String cellContent) {
+        CellAddress address = getFirst(cellContent);
+        return address == null ? -1 : address.getRow();
+    }
+
+    /**
+     * 文字列検索し、最初に発見した列を返す(無い場合は-1)
+     */
+    public int findCol(String cellContent) {
+        CellAddress address = getFirst(cellContent);
+        return address == null ? -1 : address.getColumn();
+    }
+
+    /**
+     * 指定行の中で文字列検索し、最初に発見した列を返す(無い場合は-1)
+     */
+    public int findCol(int row, String cellContent) {
+        if (row == -1) return -1;
+        List<CellAddress> list = positions.get(cellContent);
+        if (list == null) return -1;
+        for (CellAddress address : list) {
+            if (address.getRow() == row) return address.getColumn();
+            if (address.getRow() > row) break;
+        }
+        return -1;
+    }
+
+    /**
+     * 文字列検索し、最初に発見したセルを返す(無い場合はnull)
+     */
+    public Cell findCell(String cellContent) {
+        CellAddress address = getFirst(cellContent);
+        if (address == null) return null;
+        Row row = sheet.getRow(address.getRow());
+        return row == null ? null : row.getCell(address.getColumn());
+    }
+}
@@ -0,0 +1,209 @@
+package kai9.libs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 例外のメッセージとスタックトレースを文字列にする(Kai9Utils.GetException・processExceptionMessagesで共通)
+ *
+ * printStackTraceでStringWriterに出力してから1行ずつ読み直す代わりに、getStackTraceを直接1つのStringBuilderに書き込む。
+ * 詳細は原因毎に出力するので、詳細の中に"Caused by:"は出力しない。
+ * 外側の例外と共通する末尾のフレームは、printStackTraceと同じく"... N more"にまとめる。
+ * 1つの例外のフレーム数と、詳細部分の文字数に上限を設け、超えた分は省略する。
+ */
+public class StackTraceRenderer {
+
+    // 1つの例外で出力するフレーム数の上限
+    public static final int DEFAULT_MAX_FRAMES = 256;
+    // 詳細部分の文字数の上限(概算。超えた時点で以降のフレームを省略する)
+    public static final int DEFAULT_MAX_CHARS = 256 * 1024;
+
+    private static final StackTraceRenderer DEFAULT = new StackTraceRenderer(DEFAULT_MAX_FRAMES, DEFAULT_MAX_CHARS);
+    private static final String CRLF = System.lineSeparator(); // 改行コード
+
+    private final int maxFrames;
+    private final int maxChars;
+
+    /**
+     * @param maxFrames 1つの例外で出力するフレーム数の上限
+     * @param maxChars 詳細部分の文字数の上限
+     */
+    public StackTraceRenderer(int maxFrames, int maxChars) {
+        this.maxFrames = maxFrames;
+        this.maxChars = maxChars;
+    }
+
+    /**
+     * 既定の上限の StackTraceRenderer を返す
+     */
+    public static StackTraceRenderer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * 例外の原因を外側から順に返す(原因が循環している場合はそこで止める)
+     */
+    public static List<Throwable> causesOf(Throwable e) {
+        List<Throwable> causes = new ArrayList<>();
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Throwable cause = e;
+        while (cause != null && seen.add(cause)) {
+            causes.add(cause);
+            cause = cause.getCause();
+        }
+        return causes;
+    }
+
+    /**
+     * 例外を文字列にする
+     *
+     * @param e 例外
+     * @param header 先頭の見出し(nullの場合は出力しない)
+     * @param withDetail 詳細(スタックトレース)を出力するかどうか
+     * @return 直接原因から順に「エラーn：クラス名: メッセージ」、続けて「【詳細n】」とスタックトレース
+     */
+    public String render(Throwable e, String header, boolean withDetail) {
+        List<Throwable> causes = causesOf(e);
+        StringBuilder message = new StringBuilder(256 + causes.size() * 128);
+        appendSummary(message, header, causes);
+        if (withDetail) {
+            message.append(renderDetails(causes, tracesOf(causes)));
+        }
+        return message.toString();
+    }
+
+    /**
+     * 原因毎のスタックトレースを返す
+     */
+    public static StackTraceElement[][] tracesOf(List<Throwable> causes) {
+        StackTraceElement[][] traces = new StackTraceElement[causes.size()][];
+        for (int i = 0; i < causes.size(); i++) {
+            traces[i] = causes.get(i).getStackTrace();
+        }
+        return traces;
+    }
+
+    /**
+     * 見出しと、直接原因から順に「エラーn：クラス名: メッセージ」を出力する
+     *
+     * @param message 出力先
+     * @param header 先頭の見出し(nullの場合は出力しない)
+     * @param causes causesOfで取得した原因
+     */
+    public void appendSummary(StringBuilder message, String header, List<Throwable> causes) {
+        if (header != null) {
+            message.append(header).append(CRLF);
+        }
+
+        // 直接原因部分（リストの最後の要素から順に出力）
+        for (int i = causes.size() - 1; i >= 0; i--) {
+            Throwable currentCause = causes.get(i);
+            message.append("エラー").append(causes.size() - i).append("：")
+                    .append(currentCause.getClass().getName()).append(": ")
+                    .append(currentCause.getMessage()).append(CRLF).append(CRLF);
+        }
+    }
+
+    /**
+     * 直接原因から順に「【詳細n】」とスタックトレースを返す
+     *
+     * @param causes causesOfで取得した原因
+     * @param traces tracesOfで取得したスタックトレース
+     */
+    public String renderDetails(List<Throwable> causes, StackTraceElement[][] traces) {
+        int estimate = 256;
+        for (StackTraceElement[] trace : traces) {
+            estimate += 32 + trace.length * 96;
+        }
+        Output out = new Output(new StringBuilder(Math.min(estimate, maxChars + 1024)));
+        StringBuilder message = out.sb;
+
+        // 詳細部分もリストの最後の要素から順に出力
+        int detailCount = 1;
+        for (int i = causes.size() - 1; i >= 0; i--) {
+            message.append("【詳細").append(detailCount).append("】").append(CRLF);
+            // 包んでいる例外(1つ外側)と共通するフレームをまとめる
+            StackTraceElement[] enclosingTrace = (i > 0) ? traces[i - 1] : null;
+            out.dejaVu.clear();
+            out.dejaVu.add(causes.get(i));
+            appendFrames(out, causes.get(i), traces[i], enclosingTrace, "");
+            message.append(CRLF);
+            detailCount++;
+        }
+        return message.toString();
+    }
+
+    // フレームと、抑制された例外を出力する
+    private void appendFrames(Output out, Throwable t, StackTraceElement[] trace, StackTraceElement[] enclosingTrace, String prefix) {
+        // 外側の例外と共通する末尾のフレーム数
+        int m = trace.length - 1;
+        if (enclosingTrace != null) {
+            int n = enclosingTrace.length - 1;
+            while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+                m--;
+                n--;
+            }
+        }
+        int framesInCommon = trace.length - 1 - m;
+
+        for (int i = 0; i <= m; i++) {
+            if (i >= maxFrames) {
+                out.line(prefix).append("\t... 以降").append(m + 1 - i).append("フレーム省略").append(CRLF);
+                break;
+            }
+            if (out.isFull(maxChars)) return;
+            out.line(prefix).append("\tat ").append(trace[i]).append(CRLF);
+        }
+        if (framesInCommon != 0) {
+            out.line(prefix).append("\t... ").append(framesInCommon).append(" more").append(CRLF);
+        }
+
+        for (Throwable suppressed : t.getSuppressed()) {
+            appendEnclosed(out, suppressed, trace, "Suppressed: ", prefix + "\t");
+        }
+    }
+
+    // 抑制された例外と、その原因を出力する(printStackTraceと同じ形式)
+    private void appendEnclosed(Output out, Throwable t, StackTraceElement[] enclosingTrace, String caption, String prefix) {
+        if (out.isFull(maxChars)) return;
+        if (!out.dejaVu.add(t)) {
+            out.line(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append(']').append(CRLF);
+            return;
+        }
+        out.line(prefix).append(caption).append(t).append(CRLF);
+        StackTraceElement[] trace = t.getStackTrace();
+        appendFrames(out, t, trace, enclosingTrace, prefix);
+        Throwable cause = t.getCause();
+        if (cause != null) {
+            appendEnclosed(out, cause, trace, "Caused by: ", prefix);
+        }
+    }
+
+    // 出力先と、出力済みの例外
+    private static class Output {
+        final StringBuilder sb;
+        final Set<Throwable> dejaVu = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean truncated = false;
+
+        Output(StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        StringBuilder line(String prefix) {
+            return sb.append(prefix);
+        }
+
+        // 文字数の上限を超えたかどうか(最初に超えた時だけ省略した旨を出力する)
+        boolean isFull(int maxChars) {
+            if (sb.length() <= maxChars) return false;
+            if (!truncated) {
+                sb.append("\t... 文字数の上限を超えた為省略").append(CRLF);
+                truncated = true;
+            }
+            return true;
+        }
+    }
+}
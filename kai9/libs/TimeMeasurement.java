@@ -1,23 +1,246 @@
 package kai9.libs;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import lombok.Getter;
 
 /**
  * TimeMeasurementクラスは、特定のタスクの累積経過時間を計測するためのユーティリティクラスです。
  * 複数のタイマーを管理し、開始と終了のアクションによって累積経過時間をコンソールに出力します。
+ *
+ * 複数のスレッドから同時に呼ばれても良い様に、開始時刻はスレッド毎に保持し、累積時間はタイマー毎のLongAdderに加算する。
+ * startで同じスレッド・同じタイマーを入れ子で開始した場合は、一番外側の開始から終了までを1回として計測する。
+ * 開始時間はスレッド毎・タイマー毎に積み上げ、終了の度に取り除く。
+ * logTimeStart/logTimeEndは従来通り、最後の開始から終了までを計測する(logTimeStartは開始時間を積み上げずに置き換え、logTimeEndで全て取り除く)。
+ * その為、例外でlogTimeEndが呼ばれなくても、次のlogTimeStartからは正しく計測される。
+ * 同じタイマーをstartとlogTimeStartで同時に計測しない事。
+ *
+ * 使用例 ↓
+ *
+ * try (TimeMeasurement.Scope scope = TimeMeasurement.start("取込")) {
+ *     importer.run();
+ * }
+ *
+ * タイマー毎に回数・最小・最大と、経過時間の分布(2の累乗毎に8分割した固定長のヒストグラム)も記録するので、
+ * 平均だけでは分からない遅い呼出し(p95・p99等)を確認できる。分布から求める値の誤差は1/8程度。
+ * 定期的に出力する場合は snapshotAndReset で取得と同時にリセットする。
  */
 public class TimeMeasurement {
-    // タイマー名とその開始時間、累積時間を保持するマップ
-    private static final Map<String, Long> timers = new LinkedHashMap<>();
-    private static final Map<String, Long> accumulatedTimes = new LinkedHashMap<>();
+    // タイマー名とその累積時間(登録順はseqで保持)
+    private static final ConcurrentMap<String, Timer> accumulatedTimes = new ConcurrentHashMap<>();
+    private static final AtomicLong sequence = new AtomicLong();
+    // clearの度に進める(clear前に開始したタイマーは加算しない)
+    private static volatile long generation = 0;
+    // スレッド毎の、タイマー名と開始時間
+    private static final ThreadLocal<Starts> timers = ThreadLocal.withInitial(Starts::new);
+
+    // ヒストグラムの、2の累乗毎の分割数(2^SUB_BUCKET_BITS)
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 0～SUB_BUCKETS-1 はそのままの値、以降は2の累乗毎にSUB_BUCKETS個
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    // タイマー毎の累積時間と分布
+    private static class Timer {
+        final long seq;
+        final LongAdder totalNanos = new LongAdder();
+        final LongAccumulator minNanos = new LongAccumulator(Math::min, Long.MAX_VALUE);
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, Long.MIN_VALUE);
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+
+        Timer(long seq) {
+            this.seq = seq;
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            totalNanos.add(nanos);
+            minNanos.accumulate(nanos);
+            maxNanos.accumulate(nanos);
+            histogram.incrementAndGet(bucketOf(nanos));
+        }
+    }
+
+    // 値が入るヒストグラムの番号
+    static int bucketOf(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // ヒストグラムの番号に入る値の上限
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * タイマー毎の統計(時間は全てナノ秒)
+     */
+    @Getter
+    public static final class Stats {
+        private final String timerName;
+        // 計測回数(分布の件数の合計)
+        private final long count;
+        private final long totalNanos;
+        private final long minNanos;
+        private final long maxNanos;
+        private final long meanNanos;
+        // 分布から求めた値(最大値を超えない)
+        private final long p50Nanos;
+        private final long p95Nanos;
+        private final long p99Nanos;
+        private final long p999Nanos;
+
+        Stats(String timerName, Timer timer) {
+            this.timerName = timerName;
+            long[] buckets = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = timer.histogram.get(i);
+                total += buckets[i];
+            }
+            this.count = total;
+            this.totalNanos = timer.totalNanos.sum();
+            this.minNanos = (total == 0) ? 0 : timer.minNanos.get();
+            this.maxNanos = (total == 0) ? 0 : timer.maxNanos.get();
+            this.meanNanos = (total == 0) ? 0 : totalNanos / total;
+            this.p50Nanos = percentile(buckets, total, 0.50);
+            this.p95Nanos = percentile(buckets, total, 0.95);
+            this.p99Nanos = percentile(buckets, total, 0.99);
+            this.p999Nanos = percentile(buckets, total, 0.999);
+        }
+
+        private long percentile(long[] buckets, long total, double ratio) {
+            if (total == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(total * ratio));
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                if (cumulative >= rank) {
+                    return Math.max(minNanos, Math.min(bucketUpperBound(i), maxNanos));
+                }
+            }
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.3f 秒 回数=%d 平均=%.3f ms 最小=%.3f ms 最大=%.3f ms p50=%.3f ms p95=%.3f ms p99=%.3f ms p999=%.3f ms : %s",
+                    totalNanos / 1_000_000_000.0, count, millis(meanNanos), millis(minNanos), millis(maxNanos),
+                    millis(p50Nanos), millis(p95Nanos), millis(p99Nanos), millis(p999Nanos), timerName);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+
+    // スレッド内の開始時間
+    private static class Starts {
+        long generation = TimeMeasurement.generation;
+        // タイマー名 → 開始時間の積み上げ
+        final Map<String, StartStack> startTimes = new HashMap<>();
+
+        Map<String, StartStack> current() {
+            long now = TimeMeasurement.generation;
+            if (generation != now) {
+                startTimes.clear();
+                generation = now;
+            }
+            return startTimes;
+        }
+    }
+
+    // 1つのタイマーの開始時間(ナノ秒)。入れ子で開始する度に積み上げる
+    private static class StartStack {
+        long[] times = new long[4];
+        int size;
+
+        // 開始時間を積み、その位置を返す
+        int push(long now) {
+            if (size == times.length) {
+                times = Arrays.copyOf(times, size * 2);
+            }
+            times[size] = now;
+            return size++;
+        }
+    }
+
+    /**
+     * startで開始したタイマー(closeで終了する)
+     *
+     * 開始したスレッドでcloseする事。closeは2回目以降は何もしない。
+     */
+    public static final class Scope implements AutoCloseable {
+        private final String timerName;
+        private final StartStack stack;
+        private final int level;
+        private boolean closed;
+
+        private Scope(String timerName, StartStack stack, int level) {
+            this.timerName = timerName;
+            this.stack = stack;
+            this.level = level;
+        }
+
+        /**
+         * タイマーを終了する(この開始より後に開始して終了していないものも合わせて終了する)
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            // clearした後は、新しい開始時間を崩さない様に何もしない
+            if (timers.get().current().get(timerName) == stack) {
+                finish(timerName, stack, level);
+            }
+        }
+    }
 
     /**
      * 累積時間をクリアします。
      */
-    public static void clear() {
+    public static synchronized void clear() {
+        generation++;
         accumulatedTimes.clear();
-        timers.clear();
+        timers.get().current();
+    }
+
+    /**
+     * 呼出したスレッドで開始したままのタイマーを全て破棄します。(累積時間には加算しない)
+     * 例外でcloseされなかったScopeが、同じスレッドの以降の計測に影響しない様にする為に使います。
+     */
+    public static void resetCurrentThread() {
+        timers.remove();
+    }
+
+    /**
+     * 指定されたタイマーを開始します。返されたScopeをcloseすると終了します。(try-with-resourcesで使用)
+     *
+     * @param timerName タイマーの名前
+     */
+    public static Scope start(String timerName) {
+        StartStack stack = stackOf(timerName);
+        return new Scope(timerName, stack, stack.push(System.nanoTime()));
     }
 
     /**
@@ -41,35 +264,125 @@ public class TimeMeasurement {
     }
 
     /**
-     * 指定されたタイマーを開始し、開始時間を記録します。
+     * 指定されたタイマーを開始し、開始時間を記録します。(開始したままのものが有れば置き換える)
      * 
      * @param timerName タイマーの名前
      * @param isDebug デバッグ用出力を行うかどうかのフラグ
      */
     private static void startTimer(String timerName, boolean isDebug) {
         // 現在時刻を記録し、タイマーを開始
-        timers.put(timerName, System.currentTimeMillis());
+        StartStack stack = stackOf(timerName);
+        stack.size = 0;
+        stack.push(System.nanoTime());
+    }
+
+    // 呼出したスレッドの、タイマーの開始時間の積み上げ
+    private static StartStack stackOf(String timerName) {
+        Map<String, StartStack> startTimes = timers.get().current();
+        StartStack stack = startTimes.get(timerName);
+        if (stack == null) {
+            stack = new StartStack();
+            startTimes.put(timerName, stack);
+        }
+        return stack;
     }
 
     /**
-     * 指定されたタイマーを終了し、経過時間を計算して累積時間に追加します。
+     * 指定されたタイマーを終了し、経過時間を計算して累積時間に追加します。(開始時間は全て取り除く)
      * 
      * @param timerName タイマーの名前
      * @param isDebug デバッグ用出力を行うかどうかのフラグ
      */
     private static void endTimer(String timerName, boolean isDebug) {
         // タイマーの開始時間を取得
-        Long startTime = timers.get(timerName);
-        if (startTime != null) {
-            // 終了時刻を取得し、経過時間を計算
-            long endTime = System.currentTimeMillis();
-            long elapsedTime = endTime - startTime;
+        StartStack stack = timers.get().current().get(timerName);
+        if (stack == null || stack.size == 0) {
+            return;
+        }
+        finish(timerName, stack, 0);
+    }
+
+    // 積み上げた開始時間をlevelの位置まで取り除き、一番外側の終了の時だけ累積時間に加算する
+    private static void finish(String timerName, StartStack stack, int level) {
+        if (level >= stack.size) {
+            return;
+        }
+        stack.size = level;
+        if (level > 0) {
+            return;
+        }
+        // 終了時刻を取得し、経過時間を計算
+        long elapsedTime = System.nanoTime() - stack.times[0];
 
-            // 累積時間を更新
-            accumulatedTimes.put(timerName, accumulatedTimes.getOrDefault(timerName, 0L) + elapsedTime);
+        // 累積時間を更新
+        accumulatedTimes.computeIfAbsent(timerName, k -> new Timer(sequence.getAndIncrement())).record(elapsedTime);
+    }
 
-            // タイマーをマップから削除
-            timers.remove(timerName);
+    /**
+     * 指定されたタイマーの累積時間(ナノ秒)を返します。計測していない場合は0です。
+     * 
+     * @param timerName タイマーの名前
+     */
+    public static long getTotalNanos(String timerName) {
+        Timer timer = accumulatedTimes.get(timerName);
+        return (timer == null) ? 0 : timer.totalNanos.sum();
+    }
+
+    /**
+     * 指定されたタイマーの統計を返します。計測していない場合はnullです。
+     *
+     * @param timerName タイマーの名前
+     */
+    public static Stats getStats(String timerName) {
+        Timer timer = accumulatedTimes.get(timerName);
+        return (timer == null) ? null : new Stats(timerName, timer);
+    }
+
+    /**
+     * 全てのタイマーの統計を、最初に計測した順に返します。
+     */
+    public static List<Stats> snapshot() {
+        List<Stats> result = new ArrayList<>();
+        for (Map.Entry<String, Timer> entry : sortedEntries()) {
+            result.add(new Stats(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * 全てのタイマーの統計を返し、累積時間と分布をリセットします。(定期的な出力用)
+     * 計測中のタイマーはそのまま計測を続け、終了時にリセット後の累積時間に加算されます。
+     * ただし、差し替えと同時に終了した計測は差し替え前の記録に加算される事が有り、
+     * その分は今回の統計にも次回の統計にも含まれません。(回数・合計・分布は一貫しない場合が有る)
+     * 定期的な出力の誤差としては無視できる件数なので、呼出し毎のロックは取らない。
+     */
+    public static List<Stats> snapshotAndReset() {
+        List<Stats> result = new ArrayList<>();
+        for (Map.Entry<String, Timer> entry : sortedEntries()) {
+            Timer timer = entry.getValue();
+            // 新しい記録先に差し替えてから、差し替え前の記録を集計する
+            if (accumulatedTimes.replace(entry.getKey(), timer, new Timer(timer.seq))) {
+                result.add(new Stats(entry.getKey(), timer));
+            }
+        }
+        return result;
+    }
+
+    // 最初に計測した順に並べる
+    private static List<Map.Entry<String, Timer>> sortedEntries() {
+        List<Map.Entry<String, Timer>> entries = new ArrayList<>(accumulatedTimes.entrySet());
+        entries.sort(Comparator.comparingLong(entry -> entry.getValue().seq));
+        return entries;
+    }
+
+    /**
+     * 累積時間に加えて、回数・平均・最小・最大・p50/p95/p99/p999を出力します。
+     *
+     * @param isDebug デバッグ用出力を行うかどうかのフラグ
+     */
+    public static void logPrintDetail(boolean isDebug) {
+        for (Stats stats : snapshot()) {
+            System.out.println(stats);
         }
     }
 
@@ -79,15 +392,19 @@ public class TimeMeasurement {
      * @param isDebug デバッグ用出力を行うかどうかのフラグ
      */
     public static void logPrint(boolean isDebug) {
+        // 最初に計測した順に並べる
+        List<Map.Entry<String, Timer>> entries = sortedEntries();
+
         // 最大文字列長と最大時間長を初期化
         int maxLength = 0;
         int maxTimeLength = 0;
+        double[] seconds = new double[entries.size()];
 
         // 累積時間マップを走査して最大長を計算
-        for (Map.Entry<String, Long> entry : accumulatedTimes.entrySet()) {
-            String timerName = entry.getKey();
-            long timeInMs = entry.getValue();
-            double timeInSeconds = timeInMs / 1000.0;
+        for (int i = 0; i < entries.size(); i++) {
+            String timerName = entries.get(i).getKey();
+            double timeInSeconds = entries.get(i).getValue().totalNanos.sum() / 1_000_000_000.0;
+            seconds[i] = timeInSeconds;
             String formattedTime = String.format("%.3f 秒", timeInSeconds);
 
             // フォーマットされた時間の長さをチェックして最大時間長を更新
@@ -103,13 +420,11 @@ public class TimeMeasurement {
         }
 
         // 累積時間を整形して出力
-        for (Map.Entry<String, Long> entry : accumulatedTimes.entrySet()) {
-            String timerName = entry.getKey();
-            long timeInMs = entry.getValue();
-            double timeInSeconds = timeInMs / 1000.0;
+        for (int i = 0; i < entries.size(); i++) {
+            String timerName = entries.get(i).getKey();
 
             // 最大時間長に基づいてフォーマットされた時間を整形
-            String formattedTime = String.format("%" + maxTimeLength + ".3f 秒", timeInSeconds);
+            String formattedTime = String.format("%" + maxTimeLength + ".3f 秒", seconds[i]);
 
             // 整形された時間とタイマー名を出力
             System.out.println(formattedTime + " : " + timerName);